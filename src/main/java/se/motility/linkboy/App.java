@@ -5,6 +5,8 @@
  */
 package se.motility.linkboy;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.Callable;
@@ -81,6 +83,14 @@ public class App implements Callable<Integer> {
             Prediction prediction = server.predict(arguments.willHeLoveItArgs.movieId);
             LOG.info("Result: {}. Took {} ms", prediction, System.currentTimeMillis() - start);
             return 0;
+        } else if (arguments.exportArgs != null) {
+            try {
+                server.exportDefaultDistances(Paths.get(arguments.exportArgs.file));
+                return 0;
+            } catch (IOException e) {
+                LOG.error("Could not export the default distances. Message: {}", e.getMessage());
+                return 1;
+            }
         } else {
             LOG.error("Incorrect arguments");
             return 1; // should never happen
@@ -101,6 +111,9 @@ public class App implements Callable<Integer> {
 
         @ArgGroup(exclusive = false, multiplicity = "1", heading = "Will He Love It Options%n")
         WillHeLoveItArgs willHeLoveItArgs;
+
+        @ArgGroup(exclusive = false, multiplicity = "1", heading = "Build Options%n")
+        ExportArgs exportArgs;
     }
 
     private static class WillHeLoveItArgs {
@@ -127,6 +140,14 @@ public class App implements Callable<Integer> {
         private String userFile;
     }
 
+    private static class ExportArgs {
+        @Option(names = {"-x", "--export-distances"}, required = true,
+                description = "Write the distances of the default profile to this file, to be packaged as the " +
+                              "resource " + Server.DEFAULT_DISTANCES_PATH + " for faster startup of servers with a cache " +
+                              "directory")
+        private String file;
+    }
+
     private static class MovieSearchArgs {
         @Option(names = {"-f", "--find"}, required = true,
                 description = "Enter a string to search for Movie ID based on title")
@@ -21,6 +21,7 @@ import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.motility.linkboy.model.Matrix;
 import se.motility.linkboy.model.Movie;
 import se.motility.linkboy.model.TasteSpace;
 import se.motility.linkboy.model.UserData;
@@ -54,7 +55,7 @@ public class DataLoader {
 
             // Pre-allocate data structures for data
             int[] clusterIds = new int[rows];
-            float[][] coordinates = new float[rows][cols];
+            Matrix coordinates = new Matrix(rows, cols);
 
             // Loop over input data and populate data structures
             String[] values;
@@ -62,10 +63,9 @@ public class DataLoader {
             while ((row = buf.readLine()) != null) {
                 row = WHITESPACE.matcher(row).replaceAll("");
                 values = row.split(COMMA);
-                float[] coordinate = coordinates[i];
                 clusterIds[i] = Integer.parseInt(values[0]);
                 for (int j = 1; j < values.length; j++) {
-                    coordinate[j-1] = Float.parseFloat(values[j]);
+                    coordinates.set(i, j-1, Float.parseFloat(values[j]));
                 }
                 i++;
             }
@@ -151,12 +151,13 @@ public class DataLoader {
         System.arraycopy(clusterIds, 0, cIds, 0, k);
         System.arraycopy(ratings, 0, rats, 0, k);
 
-        float[][] userspace = new float[k][globalSpace.getDimensions()];
+        int[] cIdxs = new int[k];
         for (int j = 0; j < k; j++) {
-            userspace[j] = globalSpace.getCoordinate(globalSpace.getClusterIndex(cIds[j]));
+            cIdxs[j] = globalSpace.getClusterIndex(cIds[j]);
         }
 
-        return new UserData(mIds, cIds, rats, userspace);
+        // The user's coordinates are a view of the rows of the rated clusters in the global taste-space
+        return new UserData(mIds, cIds, cIdxs, rats, globalSpace.getCoordinates().rows(cIdxs));
     }
 
     // Efficient counting of lines in file taken from https://stackoverflow.com/a/5342096
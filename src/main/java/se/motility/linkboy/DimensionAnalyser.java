@@ -10,6 +10,7 @@ import java.util.Comparator;
 import java.util.function.Function;
 
 import se.motility.linkboy.model.DimensionStat;
+import se.motility.linkboy.model.Matrix;
 import se.motility.linkboy.model.TasteSpace;
 import se.motility.linkboy.model.UserData;
 import se.motility.linkboy.util.SampleIndexSequence;
@@ -105,27 +106,29 @@ public class DimensionAnalyser {
         int k = data.getDimensions();
         TasteSpace fullSpace = data.getSpace();
 
-        float[][] columnSpace = VectorMath.transpose(fullSpace.getCoordinates());
+        Matrix coordinates = fullSpace.getCoordinates();
 
         float[] ratings = data.getRatings();
 
-        // Calculate baseline mse (independent of coordinate)
+        // Calculate baseline mse (independent of coordinate). The samples share their buffers, which
+        // would otherwise dominate the allocation of each user request
         SampleIndexSequence indexSampler = new SampleIndexSequence(0, ratings.length - 1);
         float[] mseParts = new float[MC_SAMPLES];
-        int[] indices;
+        int[] indices = new int[ratings.length];
+        float[] sse = new float[ratings.length - 2]; // endpoints not included
         for (int j = 0; j < mseParts.length; j++) {
-            indices = indexSampler.getRandomSequence();
-            mseParts[j] = calculateMidpointMse(ratings, indices);
+            indexSampler.getRandomSequence(indices);
+            mseParts[j] = calculateMidpointMse(ratings, indices, sse);
         }
         float baselineMse = VectorMath.sum(mseParts) / mseParts.length;
 
         // Calculate model mse for each dimension
-        float[] coordinates1d;
+        float[] coordinates1d = new float[coordinates.getRows()];
         float[] modelMse = new float[k];
         for (int i = 0; i < k; i++) {
-            coordinates1d = columnSpace[i]; // Should we weight based on distance? Or is just midpoint enough?
+            coordinates.getCol(i, coordinates1d); // Should we weight based on distance? Or is just midpoint enough?
             int[] sortedIndices = indexSort(coordinates1d);
-            modelMse[i] = calculateMidpointMse(ratings, sortedIndices);
+            modelMse[i] = calculateMidpointMse(ratings, sortedIndices, sse);
         }
 
         DimensionStat[] result = new DimensionStat[k];
@@ -136,9 +139,8 @@ public class DimensionAnalyser {
 
     }
 
-    private static float calculateMidpointMse(float[] ratings, int[] indices) {
-        int n = ratings.length - 2; // endpoints not included
-        float[] sse = new float[n];
+    // sse holds the squared error of each movie but the endpoints, and is overwritten
+    private static float calculateMidpointMse(float[] ratings, int[] indices, float[] sse) {
         float predicted;
         float actual;
         for (int j = 1; j < indices.length - 1; j++) {
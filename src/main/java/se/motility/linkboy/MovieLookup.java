@@ -7,15 +7,21 @@ package se.motility.linkboy;
 
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import se.motility.linkboy.model.IdIndex;
 import se.motility.linkboy.model.Movie;
+import se.motility.linkboy.model.PrefixIndex;
 
 /**
  * A database containing metadata about all movies in the system.
@@ -28,80 +34,208 @@ import se.motility.linkboy.model.Movie;
 public class MovieLookup {
 
     private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Comparator<Movie> MOST_VOTES = Comparator.comparingInt(Movie::getVotes)
+                                                                  .reversed()
+                                                                  .thenComparingInt(Movie::getId);
+    private static final int COMPLETIONS = 16; // best movies kept per prefix
 
-    private final Int2ObjectOpenHashMap<Movie> movies;
-    private final Int2ObjectOpenHashMap<String> searchIndex;
+    // Movies in the iteration order of a hash map by ID, which the order of equally rated movies in
+    // getCluster(int) has always been based on
+    private final Movie[] movies;
+    private final int[] clusterIds;
+    private final IdIndex movieIndex;
+    // Movies grouped by cluster, each cluster in decreasing order of rating. The movies of the
+    // cluster with index c are found at the positions [clusterOffsets[c], clusterOffsets[c + 1])
+    private final IdIndex clusterIndex;
+    private final int[] clusterOffsets;
+    private final Movie[] clusterMovies;
+    // Movies in order of ID along with their searchable titles, and the positions of the titles
+    // containing each trigram, in increasing order
+    private final Movie[] searchMovies;
+    private final String[] searchIndex;
+    private final Long2ObjectMap<int[]> trigrams;
+    // Movies in decreasing order of votes, indexed by the words of their titles
+    private final Movie[] rankedMovies;
+    private final PrefixIndex prefixIndex;
 
     public MovieLookup(List<Movie> movies) {
-        this.movies = movies.stream()
+        Int2ObjectOpenHashMap<Movie> byId = movies.stream()
               .collect(Collectors.toMap(
                       Movie::getId, m -> m, (m1,m2) -> m1, Int2ObjectOpenHashMap::new));
-        this.searchIndex = movies.stream()
-              .collect(Collectors.toMap(
-                      Movie::getId, m -> normalize(m.getTitle()), (m1,m2) -> m1, Int2ObjectOpenHashMap::new));
+        int n = byId.size();
+        this.movies = new Movie[n];
+        this.clusterIds = new int[n];
+        int[] movieIds = new int[n];
+        int i = 0;
+        for (Movie movie : byId.values()) {
+            this.movies[i] = movie;
+            this.clusterIds[i] = movie.getClusterId();
+            movieIds[i] = movie.getId();
+            i++;
+        }
+        this.movieIndex = IdIndex.of(movieIds);
+
+        // Group the movies by cluster, keeping their order within each cluster before sorting it
+        this.clusterIndex = IdIndex.of(Arrays.stream(clusterIds).distinct().sorted().toArray());
+        int clusters = clusterIndex.size();
+        this.clusterOffsets = new int[clusters + 1];
+        for (int clusterId : clusterIds) {
+            clusterOffsets[clusterIndex.getIndex(clusterId) + 1]++;
+        }
+        for (int c = 0; c < clusters; c++) {
+            clusterOffsets[c + 1] += clusterOffsets[c];
+        }
+        this.clusterMovies = new Movie[n];
+        int[] next = Arrays.copyOf(clusterOffsets, clusters);
+        for (i = 0; i < n; i++) {
+            clusterMovies[next[clusterIndex.getIndex(clusterIds[i])]++] = this.movies[i];
+        }
+        for (int c = 0; c < clusters; c++) {
+            Arrays.sort(clusterMovies, clusterOffsets[c], clusterOffsets[c + 1], MovieLookup::decreasingOrder);
+        }
+
+        // Index the trigrams of the titles, which all titles containing a term must contain as well
+        this.searchMovies = this.movies.clone();
+        Arrays.sort(searchMovies, Comparator.comparingInt(Movie::getId));
+        this.searchIndex = new String[n];
+        Long2ObjectOpenHashMap<IntArrayList> postings = new Long2ObjectOpenHashMap<>();
+        IntArrayList posting;
+        for (i = 0; i < n; i++) {
+            searchIndex[i] = fold(normalize(searchMovies[i].getTitle()));
+            for (int j = 0; j + 3 <= searchIndex[i].length(); j++) {
+                posting = postings.computeIfAbsent(trigram(searchIndex[i], j), k -> new IntArrayList());
+                if (posting.isEmpty() || posting.getInt(posting.size() - 1) != i) {
+                    posting.add(i);
+                }
+            }
+        }
+        this.trigrams = new Long2ObjectOpenHashMap<>(postings.size());
+        postings.long2ObjectEntrySet().fastForEach(e -> trigrams.put(e.getLongKey(), e.getValue().toIntArray()));
+
+        this.rankedMovies = searchMovies.clone();
+        Arrays.sort(rankedMovies, MOST_VOTES);
+        String[][] words = new String[n][];
+        for (i = 0; i < n; i++) {
+            words[i] = words(normalize(rankedMovies[i].getTitle()));
+        }
+        this.prefixIndex = new PrefixIndex(words, COMPLETIONS);
     }
 
     /**
      * Returns a list of movies containing the provided string. Search is case-insensitive and
-     * disregards diacritics.
+     * disregards diacritics. Only titles containing all trigrams of the string are compared to it.
      * @param term part of title to search for
-     * @return List of movies containing the provided query
+     * @return List of movies containing the provided query, in order of increasing ID
      */
     public List<Movie> search(String term) {
-        String q = normalize(term);
-        Pattern pattern = Pattern.compile(Pattern.quote(q), Pattern.CASE_INSENSITIVE);
-
-        // Using the .fastIterator() is considerably faster than using Streams
-        ObjectIterator<Int2ObjectMap.Entry<String>> iter = searchIndex
-                .int2ObjectEntrySet().fastIterator();
-
+        String q = fold(normalize(term));
         List<Movie> result = new ArrayList<>();
-        Int2ObjectMap.Entry<String> entry;
-        while (iter.hasNext()) {
-            entry = iter.next();
-            if (pattern.matcher(entry.getValue()).find()) {
-                result.add(movies.get(entry.getIntKey()));
+        if (q.length() < 3) {
+            // Too short to have any trigrams
+            for (int i = 0; i < searchMovies.length; i++) {
+                if (searchIndex[i].contains(q)) {
+                    result.add(searchMovies[i]);
+                }
             }
+            return result;
         }
 
-        result.sort(Comparator.comparingInt(Movie::getId));
+        // Intersect the postings of the trigrams, starting with the shortest, and verify what remains
+        int[][] lists = new int[q.length() - 2][];
+        for (int j = 0; j < lists.length; j++) {
+            lists[j] = trigrams.get(trigram(q, j));
+            if (lists[j] == null) {
+                return result;
+            }
+        }
+        Arrays.sort(lists, Comparator.comparingInt(list -> list.length));
+        int[] candidates = lists[0].clone();
+        int size = candidates.length;
+        for (int j = 1; j < lists.length && size > 0; j++) {
+            if (lists[j] != lists[j - 1]) {
+                size = intersect(candidates, size, lists[j]);
+            }
+        }
+        for (int k = 0; k < size; k++) {
+            if (searchIndex[candidates[k]].contains(q)) {
+                result.add(searchMovies[candidates[k]]);
+            }
+        }
         return result;
     }
 
+    /**
+     * Returns the movies with the most votes matching the provided string, such as the start of a title
+     * being typed. A single word matches titles with a word starting with it, which are looked up
+     * without any search. Otherwise, or if no title has such a word, the movies found by
+     * {@link #search(String)} are ranked instead.
+     * @param term start of a word in the title, or part of the title to search for
+     * @param limit maximum number of movies to return
+     * @return List of matching movies, in decreasing order of votes
+     */
+    public List<Movie> complete(String term, int limit) {
+        String[] w = words(normalize(term));
+        if (w.length == 0) {
+            return new ArrayList<>();
+        }
+        if (w.length == 1 && limit <= COMPLETIONS) {
+            int[] found = prefixIndex.complete(w[0], limit);
+            if (found.length > 0) {
+                List<Movie> result = new ArrayList<>(found.length);
+                for (int i : found) {
+                    result.add(rankedMovies[i]);
+                }
+                return result;
+            }
+        }
+        List<Movie> result = search(term);
+        result.sort(MOST_VOTES);
+        return new ArrayList<>(result.subList(0, Math.min(limit, result.size())));
+    }
+
+    /**
+     * @param movieId movie ID
+     * @return movie, or {@code null} if unknown
+     */
     public Movie getMovie(int movieId) {
-        return movies.get(movieId);
+        int index = movieIndex.getIndex(movieId);
+        return index == IdIndex.MISSING ? null : movies[index];
     }
 
     public int getClusterId(int movieId) {
-        return movies.get(movieId)
-                     .getClusterId();
+        return clusterIds[movieIndex.getIndex(movieId)];
     }
 
     public boolean contains(int movieId) {
-        return movies.containsKey(movieId);
+        return movieIndex.contains(movieId);
     }
 
     /**
      * Returns a List of all movies belonging to the cluster with the provided ID.
      * The movies are returned in decreasing order with respect to rating.
      * @param clusterId to find associated movies for
-     * @return List of movies belonging to the cluster
+     * @return unmodifiable List of movies belonging to the cluster
      */
     public List<Movie> getCluster(int clusterId) {
-        // Using the .fastIterator() is considerably faster than using Streams
-        ObjectIterator<Int2ObjectMap.Entry<Movie>> iter = movies
-                .int2ObjectEntrySet().fastIterator();
+        return getCluster(clusterId, Integer.MAX_VALUE);
+    }
 
-        List<Movie> result = new ArrayList<>();
-        Int2ObjectMap.Entry<Movie> entry;
-        while (iter.hasNext()) {
-            entry = iter.next();
-            if (entry.getValue().getClusterId() == clusterId) {
-                result.add(entry.getValue());
-            }
+    /**
+     * Returns the highest rated movies belonging to the cluster with the provided ID, in decreasing
+     * order with respect to rating.
+     * @param clusterId to find associated movies for
+     * @param limit maximum number of movies to return
+     * @return unmodifiable List of at most {@code limit} movies belonging to the cluster
+     */
+    public List<Movie> getCluster(int clusterId, int limit) {
+        int c = clusterIndex.getIndex(clusterId);
+        if (c == IdIndex.MISSING) {
+            return Collections.emptyList();
         }
-        result.sort(MovieLookup::decreasingOrder);
-        return result;
+        int from = clusterOffsets[c];
+        int to = from + Math.min(limit, clusterOffsets[c + 1] - from);
+        return Collections.unmodifiableList(Arrays.asList(clusterMovies).subList(from, to));
     }
 
     /* Removes diacritics */
@@ -110,6 +244,46 @@ public class MovieLookup {
                          .replaceAll("");
     }
 
+    /* Splits into lower-case words of letters and digits */
+    private static String[] words(String str) {
+        return Arrays.stream(WORD_SEPARATOR.split(str.toLowerCase(Locale.ROOT)))
+                     .filter(w -> !w.isEmpty())
+                     .toArray(String[]::new);
+    }
+
+    /*
+     * Lower-cases ASCII letters only. Pattern.CASE_INSENSITIVE, which the search has always been based
+     * on, compares all other characters as they are
+     */
+    private static String fold(String str) {
+        char[] chars = str.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+
+    private static long trigram(String str, int i) {
+        return ((long) str.charAt(i) << 32) | ((long) str.charAt(i + 1) << 16) | str.charAt(i + 2);
+    }
+
+    /* Keeps the first 'size' sorted elements of 'a' also found in the sorted 'b', returning how many */
+    private static int intersect(int[] a, int size, int[] b) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < size && j < b.length; i++) {
+            while (j < b.length && b[j] < a[i]) {
+                j++;
+            }
+            if (j < b.length && b[j] == a[i]) {
+                a[kept++] = a[i];
+            }
+        }
+        return kept;
+    }
+
     /* Highest rating first. Unrated last. */
     private static int decreasingOrder(Movie m1, Movie m2) {
         if (Float.isNaN(m1.getRating())) {
@@ -8,23 +8,38 @@ package se.motility.linkboy;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.DoubleUnaryOperator;
-import java.util.stream.Collectors;
+import java.util.function.IntPredicate;
 
 import it.unimi.dsi.fastutil.PriorityQueue;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.ints.IntLists;
 import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.motility.linkboy.PathSearch.ClusterPath;
 import se.motility.linkboy.model.DistanceMatrix;
+import se.motility.linkboy.model.HnswIndex;
+import se.motility.linkboy.model.IdIndex;
+import se.motility.linkboy.model.KdTree;
+import se.motility.linkboy.model.Landmarks;
+import se.motility.linkboy.model.Matrix;
+import se.motility.linkboy.model.MatrixBufferPool;
 import se.motility.linkboy.model.Movie;
 import se.motility.linkboy.model.MoviePath;
+import se.motility.linkboy.model.NeighbourGraph;
 import se.motility.linkboy.model.Prediction;
+import se.motility.linkboy.model.ProfileIndexes;
+import se.motility.linkboy.model.SuperClusters;
 import se.motility.linkboy.model.TasteSpace;
 import se.motility.linkboy.model.UserData;
 import se.motility.linkboy.util.IOExceptionThrowingSupplier;
@@ -47,12 +62,33 @@ public class PathFinder {
     private final float threshold = 4.5f;
     private final int maxJumps = 5;
     private final int nNearest = 10;
+    private final int neighbours = 256; // avg number of neighbours per cluster in the default graph
+    private final int superClusterSize = 200; // avg number of clusters per super-cluster
+    private final int numLandmarks = 8; // landmarks for lower bounds in the default graph
+    private final int parallelThreshold = 1000; // min clusters for computing distances in parallel
+    private final int matrixBuffers = 1; // idle matrix buffers kept for reuse, one per concurrent user request
+    private final int similarEf = 64; // default candidates per similar-cluster query, trading speed for recall
 
     private final MovieLookup movieLookup;
     private final TasteSpace tasteSpace;
     private final UserData defaultUserData;
     private final DistanceMatrix scaledDefaultDistances;
+    private final NeighbourGraph scaledDefaultGraph;
+    private final SuperClusters scaledDefaultGroups;
+    private final Landmarks scaledDefaultLandmarks;
+    private final TasteSpace scaledDefaultSpace;
+    // Spatial indexes over all clusters and over the rated clusters of the default profile, if its
+    // distances are computed exactly from its coordinates. Otherwise null
+    private final KdTree scaledDefaultClusters;
+    private final KdTree scaledDefaultRated;
+    // Approximate index over all clusters of the full space, queried with the weights of each user.
+    // Built on the first query, see similarIndex()
+    private volatile HnswIndex similarIndex;
+    private final float[] defaultWeights;
     private final int userDims;
+    private final ForkJoinPool pool;
+    private final DistanceMatrix.Layout userLayout;
+    private final MatrixBufferPool buffers;
 
     public enum PredictionKernel {
         INVERSE_PROPORTIONAL(x -> x > 0.05d ? 1/ x : 20d),
@@ -64,32 +100,277 @@ public class PathFinder {
     }
 
     public PathFinder(MovieLookup movieLookup, TasteSpace tasteSpace, UserData defaultUserData, int userDims, DimensionAnalyser analyser) {
+        this(movieLookup, tasteSpace, defaultUserData, userDims, analyser, null);
+    }
+
+    /**
+     * Creates a PathFinder which uses the provided pool to search for paths and to compute distance
+     * matrices in parallel. If {@code pool} is {@code null}, everything is sequential.
+     */
+    public PathFinder(MovieLookup movieLookup, TasteSpace tasteSpace, UserData defaultUserData, int userDims,
+            DimensionAnalyser analyser, ForkJoinPool pool) {
+        this(movieLookup, tasteSpace, defaultUserData, userDims, analyser, pool, DistanceMatrix.Layout.TRIANGULAR);
+    }
+
+    /**
+     * Creates a PathFinder which stores the distances computed for each user's ratings in the provided
+     * layout. {@link DistanceMatrix.Layout#LAZY} keeps memory use per request proportional to the
+     * number of clusters rather than its square, which suits deployments with little memory. The
+     * distances of the default profile are always stored in full.
+     */
+    public PathFinder(MovieLookup movieLookup, TasteSpace tasteSpace, UserData defaultUserData, int userDims,
+            DimensionAnalyser analyser, ForkJoinPool pool, DistanceMatrix.Layout userLayout) {
+        this(movieLookup, tasteSpace, defaultUserData, userDims, analyser, pool, userLayout, null);
+    }
+
+    /**
+     * Creates a PathFinder using precomputed distances of the default profile, such as a matrix mapped
+     * by {@link DistanceMatrix#map(java.nio.file.Path, long)}, which saves computing them. The caller is
+     * responsible for the distances matching the other arguments.
+     * @param defaultDistances distances of the default profile, or {@code null} to compute them
+     */
+    public PathFinder(MovieLookup movieLookup, TasteSpace tasteSpace, UserData defaultUserData, int userDims,
+            DimensionAnalyser analyser, ForkJoinPool pool, DistanceMatrix.Layout userLayout,
+            DistanceMatrix defaultDistances) {
+        this(movieLookup, tasteSpace, defaultUserData, userDims, analyser, pool, userLayout, defaultDistances,
+                DistanceMatrix.Encoding.FLOAT);
+    }
+
+    /**
+     * Creates a PathFinder which keeps the distances of the default profile in the provided encoding.
+     * The quantized encodings take a half or a quarter of the memory of {@link DistanceMatrix.Encoding#FLOAT},
+     * but round the distances, so that paths and predictions may differ slightly from the exact ones.
+     * Searches of the default profile then also scan the quantized distances instead of using spatial
+     * indexes over its coordinates, which only agree with exact distances.
+     * @param defaultDistances distances of the default profile, or {@code null} to compute them
+     * @param defaultEncoding encoding of the distances of the default profile
+     */
+    public PathFinder(MovieLookup movieLookup, TasteSpace tasteSpace, UserData defaultUserData, int userDims,
+            DimensionAnalyser analyser, ForkJoinPool pool, DistanceMatrix.Layout userLayout,
+            DistanceMatrix defaultDistances, DistanceMatrix.Encoding defaultEncoding) {
+        this(movieLookup, tasteSpace, defaultUserData, userDims, analyser, pool, userLayout, defaultDistances,
+                defaultEncoding, null);
+    }
+
+    /**
+     * Creates a PathFinder using precomputed indexes of the default profile, such as ones read by
+     * {@link ProfileIndexes#read(java.nio.file.Path, long)}, which saves analysing the default profile
+     * and building its neighbour graph and landmarks. Together with precomputed distances, this skips
+     * nearly all the work of the constructor. The caller is responsible for the indexes matching the
+     * other arguments, see {@link #getDefaultIndexes()}.
+     * @param defaultDistances distances of the default profile, or {@code null} to compute them
+     * @param defaultEncoding encoding of the distances of the default profile
+     * @param defaultIndexes indexes of the default profile, or {@code null} to compute them
+     */
+    public PathFinder(MovieLookup movieLookup, TasteSpace tasteSpace, UserData defaultUserData, int userDims,
+            DimensionAnalyser analyser, ForkJoinPool pool, DistanceMatrix.Layout userLayout,
+            DistanceMatrix defaultDistances, DistanceMatrix.Encoding defaultEncoding, ProfileIndexes defaultIndexes) {
         this.movieLookup = movieLookup;
         this.tasteSpace = tasteSpace;
-        this.defaultUserData = defaultUserData;
+        this.defaultUserData = defaultUserData.withClusterIndexes(tasteSpace);
         this.userDims = userDims;
-        this.scaledDefaultDistances = TasteOperations.scaleToUser(tasteSpace, defaultUserData, userDims, analyser);
+        this.pool = pool;
+        this.userLayout = userLayout;
+        this.buffers = new MatrixBufferPool(matrixBuffers);
+        if (defaultDistances != null
+                && !Arrays.equals(defaultDistances.getClusterIndexes().getIds(), tasteSpace.getClusterIds())) {
+            throw new IllegalArgumentException("Default distances are not indexed like the taste-space");
+        }
+        TasteSpace scaledDefault;
+        if (defaultIndexes == null) {
+            this.defaultWeights = new float[tasteSpace.getDimensions()];
+            scaledDefault = TasteOperations.scaleSubspace(tasteSpace, defaultUserData, userDims, analyser,
+                    defaultWeights);
+        } else {
+            Matrix coordinates = defaultIndexes.getCoordinates();
+            if (coordinates.getRows() != tasteSpace.getNumClusters() || coordinates.getCols() != userDims
+                || defaultIndexes.getWeights().length != tasteSpace.getDimensions()) {
+                throw new IllegalArgumentException("Default indexes do not match the taste-space");
+            }
+            this.defaultWeights = defaultIndexes.getWeights().clone();
+            scaledDefault = new TasteSpace(tasteSpace.getClusterIndexes(), coordinates);
+        }
+        if (defaultDistances == null) {
+            defaultDistances = DistanceMatrix.compute(scaledDefault.getClusterIndexes(), scaledDefault.getCoordinates(),
+                    DistanceMatrix.Layout.SYMMETRIC, pool, parallelThreshold, null);
+        }
+        boolean exact = defaultEncoding == DistanceMatrix.Encoding.FLOAT;
+        this.scaledDefaultSpace = scaledDefault;
+        this.scaledDefaultClusters = exact ? new KdTree(scaledDefault.getCoordinates()) : null;
+        this.scaledDefaultRated = exact
+                ? new KdTree(scaledDefault.getCoordinates().rows(this.defaultUserData.getClusterIndexes()))
+                : null;
+        this.scaledDefaultDistances = defaultDistances.quantize(defaultEncoding);
+        if (defaultIndexes == null) {
+            this.scaledDefaultGraph = NeighbourGraph.withDegree(scaledDefaultDistances, neighbours);
+            this.scaledDefaultLandmarks = Landmarks.compute(scaledDefaultGraph, numLandmarks);
+        } else {
+            this.scaledDefaultGraph = defaultIndexes.getGraph();
+            this.scaledDefaultLandmarks = defaultIndexes.getLandmarks();
+        }
+        this.scaledDefaultGroups = SuperClusters.compute(scaledDefaultDistances, superClusterSize);
+    }
+
+    /**
+     * @return distances between all clusters in the subspace of the default profile, in the encoding
+     *         given at construction
+     */
+    public DistanceMatrix getDefaultDistances() {
+        return scaledDefaultDistances;
+    }
+
+    /**
+     * @return the subspace, weights, neighbour graph and landmarks of the default profile, to be passed
+     *         to a later PathFinder along with the default distances, see {@link #getDefaultDistances()}
+     */
+    public ProfileIndexes getDefaultIndexes() {
+        return new ProfileIndexes(scaledDefaultSpace.getCoordinates(), defaultWeights.clone(), scaledDefaultGraph,
+                scaledDefaultLandmarks);
     }
 
     public MoviePath find(int movieId1, int movieId2, IOExceptionThrowingSupplier<InputStream> userDataSupplier) {
+        return find(movieId1, movieId2, userDataSupplier, Long.MAX_VALUE);
+    }
+
+    /**
+     * Finds a path between two movies, returning the best path found so far if the search is not
+     * complete by the deadline. Such a path is flagged as possibly suboptimal, see
+     * {@link MoviePath#isOptimal()}. The deadline only applies to the path search itself.
+     * @param movieId1 start movie ID, or 0 to pick a suitable start among the user's rated movies
+     * @param movieId2 target movie ID
+     * @param userDataSupplier user ratings, or {@code null} to use the default profile
+     * @param deadline time in milliseconds, as given by {@link System#currentTimeMillis()}
+     * @return path, or {@code null} if the target movie is unknown or no path could be found
+     */
+    public MoviePath find(int movieId1, int movieId2, IOExceptionThrowingSupplier<InputStream> userDataSupplier,
+            long deadline) {
         if (!movieLookup.contains(movieId2)) {
             LOG.error("Unknown target movie ID '{}'", movieId2);
             return null;
         }
         UserData userData = loadUserData(userDataSupplier);
-        DistanceMatrix scaledDistances = userDataSupplier != null
-                ? TasteOperations.scaleToUser(tasteSpace, userData, userDims, DimensionAnalyser.MIDPOINT_FUNCTION)
-                : scaledDefaultDistances;
+        try (DistanceMatrix scaledDistances = scaleToUser(userData, userDataSupplier, buffers)) {
+            if (movieId1 == 0) {
+                movieId1 = findStart(movieId2, scaledDistances, userData);
+            }
 
-        if (movieId1 == 0) {
-            Result m1 = findNearestSuitable(movieId2, threshold, scaledDistances, movieLookup, userData);
-            Movie m = movieLookup.getMovie(m1.movieId);
-            LOG.info("Optimal starting point is {} (C{}), rating: {}, distance: {}", m.getTitle(),
-                    m.getClusterId(), String.format("%.1f", m1.rating), String.format("%.3f", m1.distance));
-            movieId1 = m1.movieId;
+            return findMoviePath(movieId1, movieId2, scaledDistances, deadline);
         }
+    }
 
-        return findMoviePath(movieId1, movieId2, scaledDistances);
+    /**
+     * Finds alternative paths between two movies in order of increasing total distance, all using the
+     * number of jumps of the path returned by {@link #find(int, int, IOExceptionThrowingSupplier)},
+     * which is the first one. Paths are found lazily, so the caller may stop after any number of them.
+     * Iterating until {@link Iterator#hasNext()} returns {@code false} lets the next request reuse the
+     * memory of the user's distances.
+     * @param movieId1 start movie ID, or 0 to pick a suitable start among the user's rated movies
+     * @param movieId2 target movie ID
+     * @param userDataSupplier user ratings, or {@code null} to use the default profile
+     * @return distinct paths in order of increasing distance. Empty if the target movie is unknown or
+     *         no path could be found
+     */
+    public Iterator<MoviePath> findAlternatives(int movieId1, int movieId2,
+            IOExceptionThrowingSupplier<InputStream> userDataSupplier) {
+        if (!movieLookup.contains(movieId2)) {
+            LOG.error("Unknown target movie ID '{}'", movieId2);
+            return Collections.emptyIterator();
+        }
+        UserData userData = loadUserData(userDataSupplier);
+        // The paths are enumerated from the matrix after returning, so it is returned to the pool once
+        // they are exhausted. If the caller stops earlier, its buffer is simply garbage collected
+        DistanceMatrix scaledDistances = scaleToUser(userData, userDataSupplier, buffers);
+        final int startMovieId;
+        final int cIdx1;
+        final Iterator<ClusterPath> alternatives;
+        try {
+            startMovieId = movieId1 == 0 ? findStart(movieId2, scaledDistances, userData) : movieId1;
+            cIdx1 = clusterIndex(movieLookup.getClusterId(startMovieId));
+            int cIdx2 = clusterIndex(movieLookup.getClusterId(movieId2));
+            PathSearch search = new PathSearch(origin(scaledDistances, cIdx1), cIdx2, pool);
+            double[] maxDist = jumpLimits(search.getDirectDistance(), maxJumps);
+            int jumps = maxJumps;
+            ClusterPath[] paths = search.find(maxDist);
+            while (jumps > 0 && (paths[jumps] == null || Double.isInfinite(paths[jumps].distance))) {
+                jumps--;
+            }
+            if (jumps == 0) {
+                LOG.warn("No suitable path found between movies {} and {} with {} or fewer jumps",
+                        startMovieId, movieId2, maxJumps);
+                scaledDistances.close();
+                return Collections.emptyIterator();
+            }
+            alternatives = search.enumerate(jumps, maxDist[jumps]);
+        } catch (RuntimeException e) {
+            scaledDistances.close();
+            throw e;
+        }
+
+        return new Iterator<MoviePath>() {
+            @Override
+            public boolean hasNext() {
+                if (alternatives.hasNext()) {
+                    return true;
+                }
+                scaledDistances.close(); // no effect if already closed
+                return false;
+            }
+
+            @Override
+            public MoviePath next() {
+                if (!alternatives.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ClusterPath path = alternatives.next();
+                IntList complete = IntList.of(cIdx1);
+                complete.addAll(path.clusterIndexes);
+                return createMoviePath(startMovieId, movieId2, new ClusterPath(complete, path.distance));
+            }
+        };
+    }
+
+    /**
+     * Finds paths from one start movie to several target movies. The user subspace and the distances
+     * from the start movie are computed once and shared between all targets. Targets in the same
+     * cluster share the same search.
+     * @param startMovieId start movie ID
+     * @param targetMovieIds target movie IDs
+     * @param userDataSupplier user ratings, or {@code null} to use the default profile
+     * @return paths in the same order as the target movies. An entry is {@code null} if the target is
+     *         unknown or no path could be found. Returns {@code null} if the start movie is unknown
+     */
+    public MoviePath[] findAll(int startMovieId, int[] targetMovieIds, IOExceptionThrowingSupplier<InputStream> userDataSupplier) {
+        if (!movieLookup.contains(startMovieId)) {
+            LOG.error("Unknown start movie ID '{}'", startMovieId);
+            return null;
+        }
+        UserData userData = loadUserData(userDataSupplier);
+        try (DistanceMatrix scaledDistances = scaleToUser(userData, userDataSupplier, buffers)) {
+            int cIdx1 = clusterIndex(movieLookup.getClusterId(startMovieId));
+            PathSearch.Origin origin = origin(scaledDistances, cIdx1);
+            Int2ObjectMap<ClusterPath> pathByCluster = new Int2ObjectOpenHashMap<>();
+
+            MoviePath[] paths = new MoviePath[targetMovieIds.length];
+            int movieId2;
+            int cIdx2;
+            ClusterPath path;
+            for (int i = 0; i < targetMovieIds.length; i++) {
+                movieId2 = targetMovieIds[i];
+                if (!movieLookup.contains(movieId2)) {
+                    LOG.warn("Unknown target movie ID '{}'", movieId2);
+                    continue;
+                }
+                cIdx2 = clusterIndex(movieLookup.getClusterId(movieId2));
+                if (pathByCluster.containsKey(cIdx2)) {
+                    path = pathByCluster.get(cIdx2);
+                } else {
+                    path = findClusterPath(origin, cIdx2, maxJumps, Long.MAX_VALUE);
+                    pathByCluster.put(cIdx2, path);
+                }
+                paths[i] = createMoviePath(startMovieId, movieId2, path);
+            }
+            return paths;
+        }
     }
 
     public Prediction predict(int movieId, PredictionKernel kernel) {
@@ -161,57 +442,114 @@ public class PathFinder {
         return defaultUserData;
     }
 
-    public Prediction[] findRecommended(int movieId, IOExceptionThrowingSupplier<InputStream> userDataSupplier) {
+    // Distances in the user's subspace, or those of the default profile if no user data is provided.
+    // A matrix computed with buffers must be closed to return its storage, while closing the default
+    // matrix has no effect.
+    private DistanceMatrix scaleToUser(UserData userData, IOExceptionThrowingSupplier<InputStream> userDataSupplier,
+            MatrixBufferPool buffers) {
+        if (userDataSupplier == null) {
+            return scaledDefaultDistances;
+        }
+        TasteSpace scaled = TasteOperations.scaleSubspace(tasteSpace, userData, userDims,
+                DimensionAnalyser.MIDPOINT_FUNCTION);
+        return DistanceMatrix.compute(scaled.getClusterIndexes(), scaled.getCoordinates(), userLayout, pool,
+                parallelThreshold, buffers);
+    }
 
-        int kNearest = 5;
+    /**
+     * Finds the clusters most similar to that of a movie in the user's subspace, without computing its
+     * distances. The search is approximate, so a few of the nearest clusters may be missed.
+     * @param movieId movie ID
+     * @param count maximum number of clusters to find
+     * @param userDataSupplier user ratings, or {@code null} to use the default profile
+     * @return the most popular movie of each cluster found, ordered by increasing distance. Empty if the
+     *         movie is unknown
+     */
+    public List<Movie> findSimilar(int movieId, int count, IOExceptionThrowingSupplier<InputStream> userDataSupplier) {
+        return findSimilar(movieId, count, similarEf, userDataSupplier);
+    }
 
-        UserData userData = loadUserData(userDataSupplier);
+    /**
+     * Finds the clusters most similar to that of a movie like {@link #findSimilar(int, int, IOExceptionThrowingSupplier)},
+     * keeping {@code ef} candidates during the search. The index of all clusters is built by the first
+     * call, which takes a few hundred milliseconds.
+     * @param movieId movie ID
+     * @param count maximum number of clusters to find
+     * @param ef number of candidates to keep during the search. Larger values find more of the nearest
+     *           clusters at the cost of speed, and values below {@code count + 1} have no effect
+     * @param userDataSupplier user ratings, or {@code null} to use the default profile
+     * @return the most popular movie of each cluster found, ordered by increasing distance. Empty if the
+     *         movie is unknown
+     */
+    public List<Movie> findSimilar(int movieId, int count, int ef,
+            IOExceptionThrowingSupplier<InputStream> userDataSupplier) {
+        if (!movieLookup.contains(movieId)) {
+            LOG.error("Unknown movie ID '{}'", movieId);
+            return Collections.emptyList();
+        }
+        float[] weights = defaultWeights;
+        if (userDataSupplier != null) {
+            UserData userData = loadUserData(userDataSupplier);
+            weights = userData == defaultUserData ? defaultWeights : TasteOperations.weights(tasteSpace, userData,
+                    userDims, DimensionAnalyser.MIDPOINT_FUNCTION);
+        }
+        int index = clusterIndex(movieLookup.getClusterId(movieId));
+        float[] query = tasteSpace.getCoordinates().getRow(index, new float[tasteSpace.getDimensions()]);
+        int[] found = similarIndex().search(query, weights, count + 1, Math.max(ef, count + 1));
+
+        List<Movie> movies = new ArrayList<>(count);
+        for (int i = 0; i < found.length && movies.size() < count; i++) {
+            if (found[i] != index) {
+                movies.add(movieLookup.getCluster(tasteSpace.getClusterId(found[i])).get(0));
+            }
+        }
+        return movies;
+    }
 
-        DistanceMatrix scaledDistances = userDataSupplier != null
-                ? TasteOperations.scaleToUser(tasteSpace, userData, userDims, DimensionAnalyser.MIDPOINT_FUNCTION)
-                : scaledDefaultDistances;
+    private HnswIndex similarIndex() {
+        HnswIndex index = similarIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = similarIndex;
+                if (index == null) {
+                    index = new HnswIndex(tasteSpace.getCoordinates());
+                    similarIndex = index;
+                }
+            }
+        }
+        return index;
+    }
 
+    public Prediction[] findRecommended(int movieId, IOExceptionThrowingSupplier<InputStream> userDataSupplier) {
 
-        int clusterId = movieLookup.getClusterId(movieId);
-        int index = scaledDistances.getClusterIndex(clusterId);
-        int n = scaledDistances.getNumClusters();
+        int kNearest = 5;
 
-        PriorityQueue<ClusterResult> queue = new ObjectHeapPriorityQueue<>(
-                2*kNearest, C_DISTANCE_COMPARATOR);
+        int clusterId = movieLookup.getClusterId(movieId);
+        int index = clusterIndex(clusterId);
 
-        float d;
-        int cId;
-        for (int i = 0; i < n; i++) {
-            if (i != index) {
-                d = scaledDistances.getDistance(index, i);
-                if (i < 2*kNearest) {
-                    cId = tasteSpace.getClusterId(i);
-                    queue.enqueue(new ClusterResult(cId, d));
-                } else if (d < queue.first().distance) {
-                    queue.dequeue();
-                    cId = tasteSpace.getClusterId(i);
-                    queue.enqueue(new ClusterResult(cId, d));
-                }
-            }
-        }
+        UserData userData = loadUserData(userDataSupplier);
+        PriorityQueue<ClusterResult> queue;
+        try (DistanceMatrix scaledDistances = scaleToUser(userData, userDataSupplier, buffers)) {
+            queue = findNearestClusters(index, 2*kNearest, scaledDistances);
+        } // only the nearest clusters are needed from here on
 
         int[] clusterIds = new int[queue.size() + 1];
-        float[][] coordinates = new float[queue.size() + 1][tasteSpace.getDimensions()];
+        int[] indexes = new int[queue.size() + 1];
 
         int i = 0;
         // Put the original movie cluster at position 0 to make it look nicer
         clusterIds[i] = clusterId;
-        coordinates[i] = tasteSpace.getCoordinate(index);
+        indexes[i] = index;
         i++;
         ClusterResult result;
         while (!queue.isEmpty()) {
             result = queue.dequeue();
             clusterIds[i] = result.clusterId;
-            coordinates[i] = tasteSpace.getCoordinate(tasteSpace.getClusterIndex(result.clusterId));
+            indexes[i] = tasteSpace.getClusterIndex(result.clusterId);
             i++;
         }
 
-        DistanceMatrix globalDistances = DistanceMatrix.compute(clusterIds, coordinates);
+        DistanceMatrix globalDistances = DistanceMatrix.compute(clusterIds, tasteSpace.getCoordinates().rows(indexes));
 
         ClusterPrediction[] highestPredicted = new ClusterPrediction[clusterIds.length - 1];
         ClusterResult[] highestDistance = new ClusterResult[clusterIds.length - 1];
@@ -254,13 +592,41 @@ public class PathFinder {
         return predictions;
     }
 
-    private MoviePath findMoviePath(int movieId1, int movieId2, DistanceMatrix distances) {
-        Movie movie1 = movieLookup.getMovie(movieId1);
+    // Finds the clusters nearest the cluster with the given index, as a queue with the farthest first
+    private PriorityQueue<ClusterResult> findNearestClusters(int index, int k, DistanceMatrix distances) {
+        int n = distances.getNumClusters();
+        PriorityQueue<ClusterResult> queue = new ObjectHeapPriorityQueue<>(k, C_DISTANCE_COMPARATOR);
 
-        int cIdx1 = distances.getClusterIndex(movieLookup.getClusterId(movieId1));
-        int cIdx2 = distances.getClusterIndex(movieLookup.getClusterId(movieId2));
-        ClusterPath path = findClusterPath(cIdx1, cIdx2, maxJumps, distances);
+        KdTree tree = distances == scaledDefaultDistances ? scaledDefaultClusters : null;
+        float[] query = tree != null ? queryPoint(index) : null;
+        float d;
+        int cId;
+        for (int i = 0; i < n;
+                i = i + 1 < k ? i + 1 : next(tree, query, i, queue.first().distance, null, n)) {
+            if (i != index) {
+                d = distances.getDistance(index, i);
+                if (i < k) {
+                    cId = tasteSpace.getClusterId(i);
+                    queue.enqueue(new ClusterResult(cId, d));
+                } else if (d < queue.first().distance) {
+                    queue.dequeue();
+                    cId = tasteSpace.getClusterId(i);
+                    queue.enqueue(new ClusterResult(cId, d));
+                }
+            }
+        }
+        return queue;
+    }
 
+    private MoviePath findMoviePath(int movieId1, int movieId2, DistanceMatrix distances, long deadline) {
+        int cIdx1 = clusterIndex(movieLookup.getClusterId(movieId1));
+        int cIdx2 = clusterIndex(movieLookup.getClusterId(movieId2));
+        ClusterPath path = findClusterPath(origin(distances, cIdx1), cIdx2, maxJumps, deadline);
+        return createMoviePath(movieId1, movieId2, path);
+    }
+
+    private MoviePath createMoviePath(int movieId1, int movieId2, ClusterPath path) {
+        Movie movie1 = movieLookup.getMovie(movieId1);
         if (path == null || Double.isInfinite(path.distance)) {
             Movie mov2 = movieLookup.getMovie(movieId2);
             LOG.warn("No suitable path found between {} (C{}) and {} (C{}) with {} or fewer jumps",
@@ -272,28 +638,32 @@ public class PathFinder {
         List<Integer> clusterIds = new ArrayList<>();
         for (int idx : path.clusterIndexes) {
             int clusterId = tasteSpace.getClusterId(idx);
-            List<Movie> movies = movieLookup.getCluster(clusterId);
-            clusters.add(movies.stream()
-                               .limit(4)
-                               .collect(Collectors.toList()));
+            clusters.add(movieLookup.getCluster(clusterId, 4));
             clusterIds.add(clusterId);
         }
 
         Movie movie2 = movieLookup.getMovie(movieId2);
-        return new MoviePath(movie1, movie2, clusters, clusterIds, path.distance);
+        return new MoviePath(movie1, movie2, clusters, clusterIds, path.distance, path.optimal);
+    }
+
+    private int findStart(int targetMovieId, DistanceMatrix distances, UserData userData) {
+        Result m1 = findNearestSuitable(targetMovieId, threshold, distances, movieLookup, userData);
+        Movie m = movieLookup.getMovie(m1.movieId);
+        LOG.info("Optimal starting point is {} (C{}), rating: {}, distance: {}", m.getTitle(),
+                m.getClusterId(), String.format("%.1f", m1.rating), String.format("%.3f", m1.distance));
+        return m1.movieId;
     }
 
     // Finds the movie nearest 'targetMovieId' in user sub-space, with a rating of at least 'minRating'
     // If no movie has sufficiently high rating, the nearest highest rated movie is returned.
     private Result findNearestSuitable(int targetMovieId, float minRating,
             DistanceMatrix distances, MovieLookup movieLookup, UserData userdata) {
-        int targetClusterId = movieLookup.getClusterId(targetMovieId);
-        int[] movieIds = userdata.getMovieIds();
+        int targetIndex = clusterIndex(movieLookup.getClusterId(targetMovieId));
 
-        Result m1 = findNearestConstrained(movieIds, targetClusterId, minRating, distances, movieLookup, userdata);
+        Result m1 = findNearestConstrained(targetIndex, minRating, distances, userdata);
         if (m1 == null) {
             // search again but without ratings threshold
-            m1 = findNearestConstrained(movieIds, targetClusterId, Float.NEGATIVE_INFINITY, distances, movieLookup, userdata);
+            m1 = findNearestConstrained(targetIndex, Float.NEGATIVE_INFINITY, distances, userdata);
         }
 
         if (m1 == null) {
@@ -304,24 +674,31 @@ public class PathFinder {
         }
     }
 
-    // Finds the movie nearest 'targetMovieId' in user sub-space, with a rating of at least 'minRating'
-    private Result findNearestConstrained(int[] movieIds, int targetClusterId, float minRating,
-            DistanceMatrix distances, MovieLookup movieLookup, UserData userdata) {
+    // Finds the movie nearest 'targetIndex' in user sub-space, with a rating of at least 'minRating'
+    private Result findNearestConstrained(int targetIndex, float minRating, DistanceMatrix distances,
+            UserData userdata) {
+        int[] movieIds = userdata.getMovieIds();
+        int[] clusterIndexes = userdata.getClusterIndexes();
+        float[] ratings = userdata.getRatings();
+        KdTree tree = distances == scaledDefaultDistances && userdata == defaultUserData ? scaledDefaultRated : null;
+        float[] query = tree != null ? queryPoint(targetIndex) : null;
+        IntPredicate eligible = i -> ratings[i] >= minRating;
         int movieId = -1;
         float rating = minRating;
         float distance = Float.POSITIVE_INFINITY;
-        int cId;
+        int cIdx;
         float r;
         float d;
-        for (int mId : movieIds) {
-            r = userdata.getRating(mId);
+        for (int i = next(tree, query, -1, distance, eligible, movieIds.length); i < movieIds.length;
+                i = next(tree, query, i, distance, eligible, movieIds.length)) {
+            r = ratings[i];
             if (r >= rating) {
-                cId = movieLookup.getClusterId(mId);
-                if (cId != targetClusterId) {
-                    d = distances.getDistanceById(cId, targetClusterId);
+                cIdx = clusterIndexes[i];
+                if (cIdx != targetIndex) {
+                    d = distances.getDistance(cIdx, targetIndex);
                     if (d < distance) {
                         distance = d;
-                        movieId = mId;
+                        movieId = movieIds[i];
                         rating = r;
                     }
                 }
@@ -336,16 +713,20 @@ public class PathFinder {
                 kNearest, DISTANCE_COMPARATOR);
 
         int[] movieIds = userdata.getMovieIds();
+        int[] clusterIndexes = userdata.getClusterIndexes();
+        float[] ratings = userdata.getRatings();
+        int index = clusterIndex(clusterId);
+        KdTree tree = distances == scaledDefaultDistances && userdata == defaultUserData ? scaledDefaultRated : null;
+        float[] query = tree != null ? queryPoint(index) : null;
 
-        int cId;
         float r;
         float d;
         int mId;
-        for (int i = 0; i < movieIds.length; i++) {
+        for (int i = 0; i < movieIds.length;
+                i = i + 1 < kNearest ? i + 1 : next(tree, query, i, queue.first().distance, null, movieIds.length)) {
             mId = movieIds[i];
-            cId = movieLookup.getClusterId(mId);
-            d = distances.getDistanceById(clusterId, cId);
-            r = userdata.getRating(mId);
+            d = distances.getDistance(index, clusterIndexes[i]);
+            r = ratings[i];
             if (i < kNearest) {
                 queue.enqueue(new Result(mId, r, d));
             } else if (d < queue.first().distance) {
@@ -362,64 +743,73 @@ public class PathFinder {
         return results;
     }
 
-    private ClusterPath findClusterPath(int clusterIndex1, int clusterIndex2, int maxJumps, DistanceMatrix distances) {
-        float clusterDist = distances.getDistance(clusterIndex1, clusterIndex2);
-        int jumps = maxJumps;
-        ClusterPath path = null;
-        // Gradually lower 'maxJumps' until a path can be found
-        while ((path == null || Double.isInfinite(path.distance)) && jumps > 0) {
-            double maxDist = (clusterDist / (double) jumps) * 1.5d;
-            path = findPathRecursive(distances, clusterIndex1, clusterIndex2, jumps, maxDist);
-            jumps--;
+    // Index of the point to scan after 'i' of 'n' points. A scan which ignores all points at least
+    // 'limit' away skips straight to the next closer one if there is a spatial index over the points
+    private static int next(KdTree tree, float[] query, int i, double limit, IntPredicate filter, int n) {
+        if (tree == null) {
+            return i + 1;
         }
-        if (path == null || jumps < 0) {
-            return null;
+        int next = tree.next(query, i + 1, (float) limit, filter);
+        return next < 0 ? n : next;
+    }
+
+    // Index of a cluster in the taste-space and all its distance matrices. The movie map and the
+    // taste-space are read separately, so a movie's cluster may be missing, and its index of -1 must
+    // not be used to read a distance
+    private int clusterIndex(int clusterId) {
+        int index = tasteSpace.getClusterIndex(clusterId);
+        if (index == IdIndex.MISSING) {
+            LOG.error("Cluster {} is not in the taste-space", clusterId);
+            throw new IllegalArgumentException("Cluster " + clusterId + " is not in the taste-space");
         }
-        IntList complete = IntList.of(clusterIndex1);
-        complete.addAll(path.clusterIndexes);
-        return new ClusterPath(complete, path.distance);
+        return index;
     }
 
-    private ClusterPath findPathRecursive(DistanceMatrix distances, int cIdx1, int cIdx2, int remaining, double maxDist) {
-        if (remaining == 0 && cIdx1 == cIdx2) {
-            return new ClusterPath(IntLists.EMPTY_LIST, 0d);
-        } else if (remaining == 1) {
-            float distance = distances.getDistance(cIdx1, cIdx2);
-            if (distance > maxDist) {
-                return null;
-            } else {
-                return new ClusterPath(IntList.of(cIdx2), distance);
-            }
-        } else if (remaining <= 0) {
-            return null;
+    private float[] queryPoint(int clusterIndex) {
+        return scaledDefaultSpace.getCoordinates().getRow(clusterIndex, new float[userDims]);
+    }
+
+    private ClusterPath findClusterPath(PathSearch.Origin origin, int clusterIndex2, int maxJumps, long deadline) {
+        int clusterIndex1 = origin.getStart();
+        PathSearch search = new PathSearch(origin, clusterIndex2, pool);
+        double[] maxDist = jumpLimits(search.getDirectDistance(), maxJumps);
+        ClusterPath[] paths = search.find(maxDist, deadline);
+        LOG.debug("Path search expanded {} and pruned {} clusters", search.getExpanded(), search.getPruned());
+        if (search.isExpired()) {
+            LOG.warn("Path search between cluster indexes {} and {} passed its deadline. Path may be suboptimal",
+                    clusterIndex1, clusterIndex2);
         }
 
-        double distance = Double.POSITIVE_INFINITY;
-        IntList path0 = IntLists.EMPTY_LIST;
-        double d;
-        double dUpd;
-        ClusterPath next;
-        for (int i = 0; i < distances.getNumClusters(); i++) {
-            if (cIdx1 != i && cIdx2 != i && (d = distances.getDistance(cIdx1, i)) < maxDist) {
-                next = findPathRecursive(distances, i, cIdx2, remaining-1, maxDist);
-                if (next != null && (dUpd = d + next.distance) < distance) {
-                    path0 = IntList.of(i);
-                    path0.addAll(next.clusterIndexes);
-                    distance = dUpd;
-                }
-            }
+        // Use the largest number of jumps for which a path could be found
+        ClusterPath path = null;
+        for (int jumps = maxJumps; jumps > 0 && (path == null || Double.isInfinite(path.distance)); jumps--) {
+            path = paths[jumps];
         }
-        return new ClusterPath(path0, distance);
+        if (path == null || Double.isInfinite(path.distance)) {
+            return null;
+        }
+        IntList complete = IntList.of(clusterIndex1);
+        complete.addAll(path.clusterIndexes);
+        // If the search expired, a path of more jumps may have been missed
+        return new ClusterPath(complete, path.distance, path.optimal && !search.isExpired());
     }
 
-    private static class ClusterPath {
-        final IntList clusterIndexes;
-        final double distance;
+    // The neighbour graph, its landmarks and the super-clusters only pay for themselves when built once
+    // for the default profile, so a user's subspace is searched with its distance matrix alone
+    private PathSearch.Origin origin(DistanceMatrix distances, int clusterIndex) {
+        return distances == scaledDefaultDistances
+                ? new PathSearch.Origin(distances, scaledDefaultGraph, scaledDefaultGroups, scaledDefaultLandmarks,
+                        clusterIndex)
+                : new PathSearch.Origin(distances, clusterIndex);
+    }
 
-        public ClusterPath(IntList clusterIndexes, double distance) {
-            this.clusterIndexes = clusterIndexes;
-            this.distance = distance;
+    // Maximum jump distance per number of jumps
+    private static double[] jumpLimits(float clusterDist, int maxJumps) {
+        double[] maxDist = new double[maxJumps + 1];
+        for (int jumps = 1; jumps <= maxJumps; jumps++) {
+            maxDist[jumps] = (clusterDist / (double) jumps) * 1.5d;
         }
+        return maxDist;
     }
 
     private static class Result {
@@ -0,0 +1,875 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntLists;
+import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
+import se.motility.linkboy.model.DistanceMatrix;
+import se.motility.linkboy.model.Landmarks;
+import se.motility.linkboy.model.NeighbourGraph;
+import se.motility.linkboy.model.SuperClusters;
+
+/**
+ * Finds the shortest path between two clusters using exactly {@code k} jumps, where each jump
+ * must be shorter than a maximum distance.
+ * <p>
+ * The search is a layered dynamic program running backwards from the target. Layer {@code r}
+ * holds, for each cluster, the shortest distance to the target using exactly {@code r} jumps,
+ * and is derived from layer {@code r-1} in a single pass over all cluster pairs. Hence, a search
+ * takes O(k·n²) time rather than enumerating all O(n^k) jump sequences.
+ * <p>
+ * The search is carried out for all jump counts at once, since the tables for different jump counts
+ * only differ in their maximum jump distance and can share each read of the distance matrix.
+ * <p>
+ * Since distances are Euclidean, the distance between two clusters is a lower bound on the length of
+ * any path between them. Clusters that cannot be part of a path shorter than the best one known,
+ * e.g. outside the ellipse having the start and target clusters as foci, are pruned before being
+ * expanded. Pruning never changes the result.
+ * <p>
+ * If {@link SuperClusters} are provided, the distances from the start and to the target are only read
+ * for the super-clusters which may intersect the ellipse of the longest path allowed, i.e. the corridor
+ * between start and target. Everything but a few arrays then scales with the size of the corridor
+ * rather than the total number of clusters.
+ * <p>
+ * If {@link Landmarks} are provided, the lower bounds of clusters are tightened using the graph
+ * distances to the landmarks, for each number of jumps whose maximum jump distance is short enough
+ * for all jumps to move along the edges of the underlying graph.
+ * <p>
+ * If a {@link NeighbourGraph} is provided, the jumps from a cluster are found by scanning its nearest
+ * neighbours until they are too far away, rather than scanning all remaining candidates, whenever
+ * that is fewer clusters to read.
+ * <p>
+ * Optionally, the clusters of each layer are expanded in parallel using a {@link ForkJoinPool}.
+ * Tasks share the best bounds found so far, so that a short path found by one task can be used to
+ * prune clusters in the others. In the layer below the top one, the expanded clusters are the
+ * candidates for the first jump, each one completing a path.
+ * <p>
+ * A search may be given a deadline, after which no more clusters are expanded. The best path found so
+ * far is then returned for each number of jumps, i.e. the shortest one via the clusters expanded in
+ * time or the greedy path used as initial bound, and is flagged as possibly suboptimal.
+ * <p>
+ * Alternative paths using a fixed number of jumps can be enumerated in order of increasing distance.
+ * The tables are then computed without bounds from known paths, so that the shortest distance to the
+ * target is known for every cluster from which it can be reached in time. Partial paths are extended
+ * best-first, which yields complete paths in order since the tables give their exact remaining distance.
+ * <p>
+ * Intermediate clusters may never be the target itself, nor the cluster the jump is made from.
+ * Ties are resolved in favour of the lowest cluster index at each jump.
+ *
+ * @author M Tegling
+ */
+public class PathSearch {
+
+    private static final double INF = Double.POSITIVE_INFINITY;
+    // Relative slack on all bounds, guarding against round-off errors in the distances
+    private static final double TOLERANCE = 1e-5;
+
+    // Clusters per task when expanding a layer in parallel
+    private static final int GRAIN = 32;
+
+    private final DistanceMatrix distances;
+    private final NeighbourGraph graph;
+    private final Landmarks landmarks;
+    private final Origin origin;
+    private final ForkJoinPool pool;
+    private final int start;
+    private final int target;
+    private final int n;
+    private final float[] fromStart;
+    private final float[] toTarget;
+    private final float[] centreToTarget;
+    private final boolean[] inCorridor;
+    // Lower bounds from the landmarks, computed for candidates only
+    private final double[] landmarksFromStart;
+    private final double[] landmarksToTarget;
+    // Clusters whose distances to start and target are known, in order of increasing index
+    private int[] corridor;
+
+    private final LongAdder expanded = new LongAdder();
+    private final LongAdder pruned = new LongAdder();
+    private volatile boolean expired;
+
+    public PathSearch(DistanceMatrix distances, int start, int target) {
+        this(new Origin(distances, start), target, null);
+    }
+
+    /**
+     * Creates a search where each layer is expanded in parallel using the provided pool.
+     * @param distances distance matrix
+     * @param start start cluster index
+     * @param target target cluster index
+     * @param pool pool to use, or {@code null} to search sequentially
+     */
+    public PathSearch(DistanceMatrix distances, int start, int target, ForkJoinPool pool) {
+        this(new Origin(distances, start), target, pool);
+    }
+
+    /**
+     * Creates a search from a start cluster whose distances have already been computed, e.g. when
+     * searching for paths to several targets from the same start cluster.
+     * @param origin distances from the start cluster
+     * @param target target cluster index
+     * @param pool pool to use, or {@code null} to search sequentially
+     */
+    public PathSearch(Origin origin, int target, ForkJoinPool pool) {
+        this.distances = origin.distances;
+        this.graph = origin.graph;
+        this.landmarks = origin.landmarks;
+        this.origin = origin;
+        this.pool = pool;
+        this.start = origin.start;
+        this.target = target;
+        this.n = distances.getNumClusters();
+        this.fromStart = origin.fromStart;
+        this.toTarget = new float[n];
+        this.landmarksFromStart = landmarks == null ? null : new double[n];
+        this.landmarksToTarget = landmarks == null ? null : new double[n];
+        if (origin.groups == null) {
+            this.centreToTarget = null;
+            this.inCorridor = null;
+            this.corridor = new int[n];
+            distances.getRow(target, toTarget);
+            for (int i = 0; i < n; i++) {
+                corridor[i] = i;
+            }
+        } else {
+            // Clusters outside the corridor are never reached
+            Arrays.fill(toTarget, Float.POSITIVE_INFINITY);
+            toTarget[start] = distances.getDistance(start, target);
+            this.centreToTarget = new float[origin.groups.getNumGroups()];
+            this.inCorridor = new boolean[centreToTarget.length];
+            for (int g = 0; g < centreToTarget.length; g++) {
+                centreToTarget[g] = distances.getDistance(origin.groups.centre(g), target);
+            }
+            this.corridor = new int[0];
+        }
+    }
+
+    /**
+     * Finds the shortest path from start to target for every number of jumps {@code k = 1..K} in a
+     * single pass. For {@code k} jumps, all jumps except the last one must be strictly shorter than
+     * {@code maxDist[k]}. The final jump onto the target may be equal to {@code maxDist[k]}.
+     * <p>
+     * Each layer of the dynamic program reads every cluster pair once and updates the tables of
+     * all jump counts for which the jump is short enough.
+     * @param maxDist maximum jump distance per number of jumps, {@code K = maxDist.length - 1}.
+     *                Index 0 is ignored
+     * @return array of paths (excluding the start cluster) indexed by number of jumps. An entry is
+     *         {@code null} if a single jump is too long, or has infinite distance if no path exists
+     */
+    public ClusterPath[] find(double[] maxDist) {
+        return find(maxDist, Long.MAX_VALUE);
+    }
+
+    /**
+     * Finds the shortest path from start to target for every number of jumps, like
+     * {@link #find(double[])}, but stops expanding clusters once the deadline has passed. The paths
+     * found by then are returned, and those which may not be the shortest ones are flagged as such.
+     * @param maxDist maximum jump distance per number of jumps, {@code K = maxDist.length - 1}.
+     *                Index 0 is ignored
+     * @param deadline time in milliseconds, as given by {@link System#currentTimeMillis()}
+     * @return array of paths (excluding the start cluster) indexed by number of jumps
+     */
+    public ClusterPath[] find(double[] maxDist, long deadline) {
+        final int maxJumps = maxDist.length - 1;
+        ClusterPath[] paths = new ClusterPath[maxJumps + 1];
+        if (maxJumps < 1) {
+            return paths;
+        }
+        float direct = toTarget[start];
+        paths[1] = direct > maxDist[1] ? null : new ClusterPath(IntList.of(target), direct);
+        if (maxJumps == 1) {
+            return paths;
+        }
+
+        // Upper bounds on the total distance. No path of k jumps is longer than k * maxDist[k],
+        // and a greedy walk may give a tighter bound from an actual path
+        double maxBound = 0d;
+        for (int k = 2; k <= maxJumps; k++) {
+            maxBound = Math.max(maxBound, k * maxDist[k]);
+        }
+        widen(maxBound);
+        Bounds bounds = new Bounds(maxJumps);
+        ClusterPath[] greedy = new ClusterPath[maxJumps + 1];
+        maxBound = 0d;
+        for (int k = 2; k <= maxJumps; k++) {
+            greedy[k] = greedy(k, maxDist[k]);
+            bounds.update(k, Math.min(k * maxDist[k], greedy[k].distance));
+            maxBound = Math.max(maxBound, bounds.get(k));
+        }
+        int[] candidates = ellipse(maxBound);
+        bound(candidates);
+
+        // Layer 1: the final jump onto the target, for all jump counts k >= 2
+        double[][] cost = new double[maxJumps + 1][];
+        for (int k = 2; k <= maxJumps; k++) {
+            cost[k] = infinite(n);
+            for (int i : candidates) {
+                if (toTarget[i] <= maxDist[k] && admissible(i, 1, k, maxDist[k], bounds.get(k))) {
+                    cost[k][i] = toTarget[i];
+                }
+            }
+        }
+
+        // next[k][r][i] is the cluster after 'i' on the shortest r-jump path, given k jumps in total
+        int[][][] next = new int[maxJumps + 1][maxJumps][];
+        double[] best = new double[maxJumps + 1];
+        int[] bestIdx = new int[maxJumps + 1];
+        int[] live = live(cost, 2, maxJumps, candidates);
+        paths[2] = complete(2, cost, maxDist, next, best, bestIdx, live);
+
+        // Expand the clusters most likely to be on a short path first, to tighten the bounds early
+        int[] order = Arrays.copyOf(candidates, candidates.length);
+        IntArrays.quickSort(order, (i, j) -> Float.compare(fromStart[i] + toTarget[i], fromStart[j] + toTarget[j]));
+
+        // Layers 2..K-1: each intermediate cluster picks its best next jump, for all k > r
+        Layer layer;
+        for (int r = 2; r < maxJumps; r++) {
+            layer = new Layer(r, r + 1, maxJumps, cost, live, maxDist, bounds, true, deadline);
+            for (int k = r + 1; k <= maxJumps; k++) {
+                next[k][r] = layer.next[k];
+            }
+            pruned.add(n - 1 - candidates.length);
+            expand(layer, order);
+            cost = layer.cost;
+            live = live(cost, r + 1, maxJumps, candidates);
+            // Layer r is the last one needed before the top layer of r+1 jumps
+            paths[r + 1] = complete(r + 1, cost, maxDist, next, best, bestIdx, live);
+            if (expired) {
+                // Layer r is incomplete, so only the paths of fewer jumps are known to be the shortest
+                paths[r + 1] = shortest(paths[r + 1], greedy[r + 1]);
+                for (int k = r + 2; k <= maxJumps; k++) {
+                    paths[k] = greedy[k];
+                }
+                break;
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Enumerates all paths from start to target using exactly {@code jumps} jumps, in order of
+     * increasing total distance. The first path is the one found by {@link #find(double[])} for the same
+     * number of jumps and maximum distance. Paths are found lazily, and the tables and partial paths
+     * are kept between them, so that the caller may stop after any number of paths.
+     * @param jumps number of jumps
+     * @param maxDist maximum jump distance. The final jump onto the target may be equal to it
+     * @return paths (excluding the start cluster) in order of increasing distance
+     */
+    public Iterator<ClusterPath> enumerate(int jumps, double maxDist) {
+        // remaining[r][i] is the shortest distance from 'i' to the target using exactly r jumps
+        double[][] remaining = new double[Math.max(jumps, 1)][];
+        if (jumps > 1) {
+            // No path is longer than this, so only clusters which cannot be part of any path are pruned
+            Bounds bounds = new Bounds(jumps);
+            bounds.update(jumps, jumps * maxDist);
+            widen(bounds.get(jumps));
+            double[] limits = new double[jumps + 1];
+            limits[jumps] = maxDist;
+            int[] candidates = ellipse(bounds.get(jumps));
+            bound(candidates);
+            pruned.add((jumps - 2L) * (n - 1 - candidates.length));
+
+            double[][] cost = new double[jumps + 1][];
+            cost[jumps] = infinite(n);
+            for (int i : candidates) {
+                if (toTarget[i] <= maxDist && admissible(i, 1, jumps, maxDist, bounds.get(jumps))) {
+                    cost[jumps][i] = toTarget[i];
+                }
+            }
+            remaining[1] = cost[jumps];
+            Layer layer;
+            for (int r = 2; r < jumps; r++) {
+                layer = new Layer(r, jumps, jumps, cost, live(cost, jumps, jumps, candidates), limits, bounds,
+                        false, Long.MAX_VALUE);
+                expand(layer, candidates);
+                cost = layer.cost;
+                remaining[r] = cost[jumps];
+            }
+        }
+        return new Enumeration(jumps, maxDist, remaining);
+    }
+
+    /**
+     * @return distance of the direct jump from the start cluster to the target cluster
+     */
+    public float getDirectDistance() {
+        return toTarget[start];
+    }
+
+    /**
+     * @return number of clusters expanded, i.e. for which the best next jump was searched for,
+     *         summed over all layers
+     */
+    public long getExpanded() {
+        return expanded.sum();
+    }
+
+    /**
+     * @return number of clusters pruned without being expanded, summed over all layers
+     */
+    public long getPruned() {
+        return pruned.sum();
+    }
+
+    /**
+     * @return whether the deadline passed before the search was complete
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+    private void expand(Layer layer, int[] clusters) {
+        if (pool == null || clusters.length < 2 * GRAIN) {
+            layer.expand(clusters, 0, clusters.length);
+        } else {
+            pool.invoke(new LayerTask(layer, clusters, 0, clusters.length));
+        }
+    }
+
+    // Makes the first jump from the start cluster for 'jumps' jumps, and traces the path to the target
+    private ClusterPath complete(int jumps, double[][] cost, double[] maxDist, int[][][] next,
+            double[] best, int[] bestIdx, int[] live) {
+        relax(start, cost, maxDist, jumps, jumps, best, bestIdx, live);
+        if (Double.isInfinite(best[jumps])) {
+            return new ClusterPath(IntLists.EMPTY_LIST, best[jumps]);
+        }
+        IntList path = new IntArrayList(jumps);
+        int idx = bestIdx[jumps];
+        path.add(idx);
+        for (int r = jumps - 1; r > 1; r--) {
+            idx = next[jumps][r][idx];
+            path.add(idx);
+        }
+        path.add(target);
+        return new ClusterPath(path, best[jumps]);
+    }
+
+    // Finds the best jump from 'from' to any of the 'live' clusters for each number of jumps in
+    // [kMin, kMax], given the costs of the layer below. The distance to each candidate is read once
+    // and shared between all jump counts.
+    private void relax(int from, double[][] cost, double[] maxDist, int kMin, int kMax,
+            double[] best, int[] bestIdx, int[] live) {
+        double limit = Double.NEGATIVE_INFINITY;
+        for (int k = kMin; k <= kMax; k++) {
+            best[k] = INF;
+            bestIdx[k] = -1;
+            limit = Math.max(limit, maxDist[k]);
+        }
+        expanded.increment();
+        double d;
+        double dUpd;
+        if (graph != null && limit <= graph.getRadius()) {
+            int end = graph.end(from, limit);
+            if (end - graph.start(from) < live.length) {
+                // Neighbours are not sorted by index, so ties must be resolved explicitly
+                int j;
+                for (int p = graph.start(from); p < end; p++) {
+                    j = graph.neighbour(p);
+                    d = graph.distance(p);
+                    for (int k = kMin; k <= kMax; k++) {
+                        if (d < maxDist[k] && ((dUpd = d + cost[k][j]) < best[k]
+                                               || dUpd == best[k] && j < bestIdx[k])) {
+                            best[k] = dUpd;
+                            bestIdx[k] = j;
+                        }
+                    }
+                }
+                return;
+            }
+        }
+        for (int j : live) {
+            if (j != from && (d = distances.getDistance(from, j)) < limit) {
+                for (int k = kMin; k <= kMax; k++) {
+                    if (d < maxDist[k] && (dUpd = d + cost[k][j]) < best[k]) {
+                        best[k] = dUpd;
+                        bestIdx[k] = j;
+                    }
+                }
+            }
+        }
+    }
+
+    // Whether cluster 'i' may be visited with 'remaining' jumps left out of 'jumps', i.e. can be
+    // reached from the start and can reach the target in time, and is not too far off course
+    private boolean admissible(int i, int remaining, int jumps, double maxDist, double bound) {
+        double slack = 1d + TOLERANCE;
+        return fromStart[i] <= (jumps - remaining) * maxDist * slack
+               && toTarget[i] <= remaining * maxDist * slack
+               && lowerFromStart(i, maxDist) + lowerToTarget(i, maxDist) <= bound * slack;
+    }
+
+    // Lower bound on the distance from the start to candidate 'i', given the maximum jump distance
+    private double lowerFromStart(int i, double maxDist) {
+        return landmarks != null && maxDist < landmarks.getRadius()
+                ? Math.max(fromStart[i], landmarksFromStart[i])
+                : fromStart[i];
+    }
+
+    // Lower bound on the distance from candidate 'i' to the target, given the maximum jump distance
+    private double lowerToTarget(int i, double maxDist) {
+        return landmarks != null && maxDist < landmarks.getRadius()
+                ? Math.max(toTarget[i], landmarksToTarget[i])
+                : toTarget[i];
+    }
+
+    private void bound(int[] candidates) {
+        if (landmarks != null) {
+            for (int i : candidates) {
+                landmarksFromStart[i] = landmarks.lowerBound(start, i);
+                landmarksToTarget[i] = landmarks.lowerBound(i, target);
+            }
+        }
+    }
+
+    // Extends the corridor with the super-clusters which may contain clusters of ellipse(bound)
+    private void widen(double bound) {
+        if (origin.groups == null) {
+            return;
+        }
+        SuperClusters groups = origin.groups;
+        double limit = bound * (1d + TOLERANCE);
+        IntList added = new IntArrayList();
+        int m;
+        for (int g = 0; g < centreToTarget.length; g++) {
+            if (!inCorridor[g] && origin.centreFromStart[g] + centreToTarget[g] - 2d * groups.radius(g) <= limit) {
+                inCorridor[g] = true;
+                origin.open(g);
+                for (int p = groups.start(g); p < groups.end(g); p++) {
+                    m = groups.member(p);
+                    toTarget[m] = distances.getDistance(m, target);
+                    added.add(m);
+                }
+            }
+        }
+        if (!added.isEmpty()) {
+            int[] widened = Arrays.copyOf(corridor, corridor.length + added.size());
+            added.getElements(0, widened, corridor.length, added.size());
+            Arrays.sort(widened);
+            corridor = widened;
+        }
+    }
+
+    // All clusters except the target for which a path via the cluster can be no longer than 'bound'
+    private int[] ellipse(double bound) {
+        double limit = bound * (1d + TOLERANCE);
+        IntList result = new IntArrayList();
+        for (int i : corridor) {
+            if (i != target && fromStart[i] + toTarget[i] <= limit) {
+                result.add(i);
+            }
+        }
+        return result.toIntArray();
+    }
+
+    // The candidates with a finite cost for any number of jumps in [kMin, kMax]
+    private static int[] live(double[][] cost, int kMin, int kMax, int[] candidates) {
+        IntList result = new IntArrayList(candidates.length);
+        for (int i : candidates) {
+            for (int k = kMin; k <= kMax; k++) {
+                if (cost[k][i] < INF) {
+                    result.add(i);
+                    break;
+                }
+            }
+        }
+        return result.toIntArray();
+    }
+
+    // Walks towards the target making the jump that deviates the least from the straight line while
+    // still being able to reach the target. Returns the walk, having infinite distance if stuck.
+    private ClusterPath greedy(int jumps, double maxDist) {
+        ClusterPath stuck = new ClusterPath(IntLists.EMPTY_LIST, INF, false);
+        IntList path = new IntArrayList(jumps);
+        double distance = 0d;
+        int current = start;
+        int bestIdx;
+        for (int r = jumps - 1; r > 0; r--) {
+            bestIdx = greedyJump(current, r, maxDist);
+            if (bestIdx < 0) {
+                return stuck;
+            }
+            distance += distances.getDistance(current, bestIdx);
+            current = bestIdx;
+            path.add(current);
+        }
+        if (toTarget[current] > maxDist) {
+            return stuck;
+        }
+        path.add(target);
+        return new ClusterPath(path, distance + toTarget[current], false);
+    }
+
+    // The shorter of two paths, flagged as possibly suboptimal
+    private static ClusterPath shortest(ClusterPath path1, ClusterPath path2) {
+        ClusterPath path = path2.distance < path1.distance ? path2 : path1;
+        return new ClusterPath(path.clusterIndexes, path.distance, false);
+    }
+
+    // The jump from 'current' deviating the least from the straight line, with 'remaining' jumps left
+    // after it, or -1 if there is none
+    private int greedyJump(int current, int remaining, double maxDist) {
+        int bestIdx = -1;
+        double best = INF;
+        float d;
+        int j;
+        if (graph != null && maxDist <= graph.getRadius()) {
+            for (int p = graph.start(current), end = graph.end(current, maxDist); p < end; p++) {
+                j = graph.neighbour(p);
+                d = graph.distance(p);
+                if (j != target && toTarget[j] <= remaining * maxDist
+                        && (d + toTarget[j] < best || d + toTarget[j] == best && j < bestIdx)) {
+                    best = d + toTarget[j];
+                    bestIdx = j;
+                }
+            }
+            return bestIdx;
+        }
+        for (int c = 0; c < corridor.length; c++) {
+            j = corridor[c];
+            if (j != current && j != target && toTarget[j] <= remaining * maxDist
+                    && (d = distances.getDistance(current, j)) < maxDist && d + toTarget[j] < best) {
+                best = d + toTarget[j];
+                bestIdx = j;
+            }
+        }
+        return bestIdx;
+    }
+
+    private static double[] infinite(int n) {
+        double[] array = new double[n];
+        Arrays.fill(array, INF);
+        return array;
+    }
+
+    /**
+     * The distances from a start cluster to all clusters. These are independent of the target, and
+     * can be shared between searches from the same start cluster. If super-clusters are provided, the
+     * distances are only read for the super-clusters opened by the searches so far.
+     */
+    public static class Origin {
+        private final DistanceMatrix distances;
+        private final NeighbourGraph graph;
+        private final SuperClusters groups;
+        private final Landmarks landmarks;
+        private final int start;
+        private final float[] fromStart;
+        private final float[] centreFromStart;
+        private final boolean[] opened;
+
+        public Origin(DistanceMatrix distances, int start) {
+            this(distances, null, null, null, start);
+        }
+
+        /**
+         * @param distances distance matrix
+         * @param graph neighbour graph of the same clusters, or {@code null} to only use the matrix
+         * @param groups super-clusters of the same clusters, or {@code null} to read all distances
+         * @param landmarks landmarks of the same clusters, or {@code null} to only use direct distances
+         *                  as lower bounds
+         * @param start start cluster index
+         */
+        public Origin(DistanceMatrix distances, NeighbourGraph graph, SuperClusters groups, Landmarks landmarks,
+                int start) {
+            int n = distances.getNumClusters();
+            this.distances = distances;
+            this.graph = graph;
+            this.groups = groups;
+            this.landmarks = landmarks;
+            this.start = start;
+            this.fromStart = new float[n];
+            if (groups == null) {
+                this.centreFromStart = null;
+                this.opened = null;
+                distances.getRow(start, fromStart);
+            } else {
+                this.centreFromStart = new float[groups.getNumGroups()];
+                this.opened = new boolean[groups.getNumGroups()];
+                for (int g = 0; g < centreFromStart.length; g++) {
+                    centreFromStart[g] = distances.getDistance(start, groups.centre(g));
+                }
+                Arrays.fill(fromStart, Float.POSITIVE_INFINITY);
+                fromStart[start] = 0f;
+            }
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        private void open(int group) {
+            if (!opened[group]) {
+                opened[group] = true;
+                for (int p = groups.start(group); p < groups.end(group); p++) {
+                    fromStart[groups.member(p)] = distances.getDistance(start, groups.member(p));
+                }
+            }
+        }
+    }
+
+    /*
+     * One layer of the dynamic program, i.e. the shortest distances to the target using exactly
+     * 'r' jumps, for all jump counts in [kMin, kMax]. Clusters are expanded independently of each
+     * other, so that any subset of them may be expanded by any thread. Unless 'tighten' is set, the
+     * bounds are not updated with the paths found.
+     */
+    private class Layer {
+        final int r;
+        final int kMin;
+        final int kMax;
+        final double[][] prev;
+        final double[][] cost;
+        final int[][] next;
+        final int[] live;
+        final double[] maxDist;
+        final Bounds bounds;
+        final boolean tighten;
+        final long deadline;
+
+        Layer(int r, int kMin, int kMax, double[][] prev, int[] live, double[] maxDist, Bounds bounds,
+                boolean tighten, long deadline) {
+            this.r = r;
+            this.kMin = kMin;
+            this.kMax = kMax;
+            this.prev = prev;
+            this.live = live;
+            this.maxDist = maxDist;
+            this.bounds = bounds;
+            this.tighten = tighten;
+            this.deadline = deadline;
+            this.cost = new double[kMax + 1][];
+            this.next = new int[kMax + 1][];
+            for (int k = kMin; k <= kMax; k++) {
+                cost[k] = infinite(n);
+                next[k] = new int[n];
+            }
+        }
+
+        void expand(int[] clusters, int from, int to) {
+            double[] limit = new double[kMax + 1];
+            double[] best = new double[kMax + 1];
+            int[] bestIdx = new int[kMax + 1];
+            boolean admitted;
+            int i;
+            double distance;
+            for (int c = from; c < to; c++) {
+                if (expired || deadline != Long.MAX_VALUE && System.currentTimeMillis() >= deadline) {
+                    expired = true;
+                    return;
+                }
+                i = clusters[c];
+                admitted = false;
+                for (int k = kMin; k <= kMax; k++) {
+                    if (admissible(i, r, k, maxDist[k], bounds.get(k))) {
+                        limit[k] = maxDist[k];
+                        admitted = true;
+                    } else {
+                        limit[k] = Double.NEGATIVE_INFINITY;
+                    }
+                }
+                if (!admitted) {
+                    pruned.increment();
+                    continue;
+                }
+                relax(i, prev, limit, kMin, kMax, best, bestIdx, live);
+                for (int k = kMin; k <= kMax; k++) {
+                    // Any path via 'i' is at least this long, regardless of how 'i' is reached. With
+                    // a direct jump from the start, the bound from the landmarks is no larger than it.
+                    distance = lowerFromStart(i, maxDist[k]) + best[k];
+                    if (distance <= bounds.get(k) * (1d + TOLERANCE)) {
+                        cost[k][i] = best[k];
+                        next[k][i] = bestIdx[k];
+                        // With one jump left to the start, this is the length of a complete path
+                        if (tighten && k == r + 1 && i != start && fromStart[i] < maxDist[k]) {
+                            bounds.update(k, distance);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static class LayerTask extends RecursiveAction {
+        private final Layer layer;
+        private final int[] clusters;
+        private final int from;
+        private final int to;
+
+        LayerTask(Layer layer, int[] clusters, int from, int to) {
+            this.layer = layer;
+            this.clusters = clusters;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                layer.expand(clusters, from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LayerTask(layer, clusters, from, mid),
+                          new LayerTask(layer, clusters, mid, to));
+            }
+        }
+    }
+
+    /*
+     * Best known upper bounds on the total distance per number of jumps, shared between threads.
+     * Since all bounds are non-negative, their IEEE 754 bit patterns are ordered just like the
+     * values themselves, which allows for lock-free updates.
+     */
+    private static class Bounds {
+        private final AtomicLongArray bits;
+
+        Bounds(int maxJumps) {
+            bits = new AtomicLongArray(maxJumps + 1);
+            for (int k = 0; k <= maxJumps; k++) {
+                bits.set(k, Double.doubleToLongBits(INF));
+            }
+        }
+
+        double get(int jumps) {
+            return Double.longBitsToDouble(bits.get(jumps));
+        }
+
+        void update(int jumps, double bound) {
+            bits.accumulateAndGet(jumps, Double.doubleToLongBits(bound), Math::min);
+        }
+    }
+
+    /*
+     * Best-first enumeration of paths using a fixed number of jumps. The priority of a partial path is
+     * its distance so far plus the shortest remaining distance, summed in the same order as by the
+     * dynamic program. Hence, the priority of a complete path is exactly its distance, and extending a
+     * partial path never decreases its priority. Ties are resolved in favour of the path found first.
+     */
+    private class Enumeration implements Iterator<ClusterPath> {
+        private final int jumps;
+        private final double maxDist;
+        private final double[][] remaining;
+        private final ObjectHeapPriorityQueue<Prefix> queue = new ObjectHeapPriorityQueue<>(
+                Comparator.comparingDouble((Prefix p) -> p.priority).thenComparingLong(p -> p.sequence));
+        private long sequence;
+        private ClusterPath nextPath;
+
+        Enumeration(int jumps, double maxDist, double[][] remaining) {
+            this.jumps = jumps;
+            this.maxDist = maxDist;
+            this.remaining = remaining;
+            queue.enqueue(new Prefix(null, start, 0f, 0d, sequence++));
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextPath == null) {
+                nextPath = advance();
+            }
+            return nextPath != null;
+        }
+
+        @Override
+        public ClusterPath next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ClusterPath path = nextPath;
+            nextPath = null;
+            return path;
+        }
+
+        private ClusterPath advance() {
+            Prefix prefix;
+            int left;
+            double h;
+            float d;
+            while (!queue.isEmpty()) {
+                prefix = queue.dequeue();
+                left = jumps - prefix.depth;
+                if (left == 0) {
+                    return prefix.toPath();
+                }
+                expanded.increment();
+                if (left == 1) {
+                    if ((d = toTarget[prefix.cluster]) <= maxDist) {
+                        extend(prefix, target, d, 0d);
+                    }
+                    continue;
+                }
+                for (int j : corridor) {
+                    if (j != prefix.cluster && (h = remaining[left - 1][j]) < INF
+                            && (d = distances.getDistance(prefix.cluster, j)) < maxDist) {
+                        extend(prefix, j, d, h);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void extend(Prefix prefix, int cluster, float jump, double h) {
+            double priority = jump + h;
+            for (Prefix p = prefix; p.parent != null; p = p.parent) {
+                priority = p.jump + priority;
+            }
+            queue.enqueue(new Prefix(prefix, cluster, jump, priority, sequence++));
+        }
+    }
+
+    private static class Prefix {
+        final Prefix parent;
+        final int cluster;
+        final int depth;
+        final float jump;
+        final double priority;
+        final long sequence;
+
+        Prefix(Prefix parent, int cluster, float jump, double priority, long sequence) {
+            this.parent = parent;
+            this.cluster = cluster;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+            this.jump = jump;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        ClusterPath toPath() {
+            int[] clusters = new int[depth];
+            for (Prefix p = this; p.parent != null; p = p.parent) {
+                clusters[p.depth - 1] = p.cluster;
+            }
+            return new ClusterPath(IntArrayList.wrap(clusters), priority);
+        }
+    }
+
+    static class ClusterPath {
+        final IntList clusterIndexes;
+        final double distance;
+        final boolean optimal;
+
+        public ClusterPath(IntList clusterIndexes, double distance) {
+            this(clusterIndexes, distance, true);
+        }
+
+        public ClusterPath(IntList clusterIndexes, double distance, boolean optimal) {
+            this.clusterIndexes = clusterIndexes;
+            this.distance = distance;
+            this.optimal = optimal;
+        }
+    }
+
+}
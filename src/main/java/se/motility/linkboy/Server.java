@@ -7,15 +7,35 @@ package se.motility.linkboy;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.motility.linkboy.model.DistanceMatrix;
 import se.motility.linkboy.model.Movie;
 import se.motility.linkboy.model.MoviePath;
 import se.motility.linkboy.model.Prediction;
+import se.motility.linkboy.model.ProfileIndexes;
 import se.motility.linkboy.model.TasteSpace;
 import se.motility.linkboy.model.UserData;
 import se.motility.linkboy.util.IOExceptionThrowingSupplier;
@@ -28,14 +48,77 @@ public class Server {
     public static final String MOVIEMAP_PATH = "moviemap.dat.gz";
     public static final String TASTESPACE_PATH = "tastespace.dat.gz";
     private static final String DEFAULT_USER_FILE = "uXXX.csv.gz"; //or u86031.csv.gz
+    // Prebuilt distances of the default profile, see exportDefaultDistances(Path). Optional
+    public static final String DEFAULT_DISTANCES_PATH = "default-distances.dat.gz";
+    // Uncompressed copy of the default distances, which is memory-mapped
+    private static final String DISTANCE_CACHE_FILE = "linkboy-default-distances.dat";
+    // Subspace, neighbour graph and landmarks of the default profile, which are read onto the heap
+    private static final String INDEXES_CACHE_FILE = "linkboy-default-indexes.dat";
+    // Bump whenever the default distances or indexes are computed differently, e.g. by changes to the
+    // scaling of the subspace, the distance kernels, the encoding or the graph parameters of PathFinder, so
+    // that files written by older code are stale
+    private static final int CACHE_VERSION = 2;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
 
     private static final int USER_DIMENSIONS = 7; //make this configurable?
+    private static final DimensionAnalyser ANALYSER = DimensionAnalyser.MIDPOINT_FUNCTION;
     private static final int MAX_RESULTS = 10;
     private static final Logger LOG = LoggerFactory.getLogger(Server.class);
 
+    private final int parallelism;
+    private final DistanceMatrix.Layout userLayout;
+    private final Path cacheDirectory;
+
     private MovieLookup movieLookup;
     private PathFinder finder;
 
+    public Server() {
+        this(1);
+    }
+
+    /**
+     * Creates a server using up to {@code parallelism} threads to find each path.
+     * @param parallelism number of threads per path search. A value of 1 means a sequential search
+     */
+    public Server(int parallelism) {
+        this(parallelism, DistanceMatrix.Layout.TRIANGULAR);
+    }
+
+    /**
+     * Creates a server using up to {@code parallelism} threads to find each path, storing the distances
+     * for each provided user file in the given layout. Use {@link DistanceMatrix.Layout#LAZY} to keep
+     * memory use low.
+     * @param parallelism number of threads per path search. A value of 1 means a sequential search
+     * @param userLayout layout of the distances computed for a user file
+     */
+    public Server(int parallelism, DistanceMatrix.Layout userLayout) {
+        this(parallelism, userLayout, null);
+    }
+
+    /**
+     * Creates a server like {@link #Server(int, DistanceMatrix.Layout)}, which caches the distances and
+     * search indexes of the default profile in the given directory. The packaged distances, if any, are
+     * extracted there, and whatever had to be computed at startup is written there, so that later
+     * startups map the distances and read the indexes instead of analysing the default profile. This
+     * pays off when the directory outlives the process. Without a directory, nothing is checksummed,
+     * extracted or written, and everything is computed at startup.
+     * <p>
+     * The directory is created with owner-only permissions if missing. It is not used if it belongs to
+     * another user or others may access it, as they could then replace the cached files.
+     * @param parallelism number of threads per path search. A value of 1 means a sequential search
+     * @param userLayout layout of the distances computed for a user file
+     * @param cacheDirectory directory to cache the default distances and indexes in, or {@code null} to
+     *                       compute them at every startup
+     */
+    public Server(int parallelism, DistanceMatrix.Layout userLayout, Path cacheDirectory) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive but was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.userLayout = userLayout;
+        this.cacheDirectory = cacheDirectory;
+    }
+
     public MoviePath find(int startMovieId, int targetMovieId, String userFile) {
         initPathFinder();
         IOExceptionThrowingSupplier<InputStream> streamSupplier = userFile == null ? null : () -> open(userFile);
@@ -47,17 +130,69 @@ public class Server {
         return finder.find(startMovieId, targetMovieId, userFileSupplier);
     }
 
+    /**
+     * Finds a path, returning the best one found so far if the search is not complete by the deadline.
+     * @param deadline time in milliseconds, as given by {@link System#currentTimeMillis()}
+     */
+    public MoviePath find(int startMovieId, int targetMovieId, String userFile, long deadline) {
+        initPathFinder();
+        IOExceptionThrowingSupplier<InputStream> streamSupplier = userFile == null ? null : () -> open(userFile);
+        return finder.find(startMovieId, targetMovieId, streamSupplier, deadline);
+    }
+
+    public MoviePath find(int startMovieId, int targetMovieId, IOExceptionThrowingSupplier<InputStream> userFileSupplier,
+            long deadline) {
+        initPathFinder();
+        return finder.find(startMovieId, targetMovieId, userFileSupplier, deadline);
+    }
+
+    public MoviePath[] findAll(int startMovieId, int[] targetMovieIds, String userFile) {
+        initPathFinder();
+        IOExceptionThrowingSupplier<InputStream> streamSupplier = userFile == null ? null : () -> open(userFile);
+        return finder.findAll(startMovieId, targetMovieIds, streamSupplier);
+    }
+
+    public MoviePath[] findAll(int startMovieId, int[] targetMovieIds, IOExceptionThrowingSupplier<InputStream> userFileSupplier) {
+        initPathFinder();
+        return finder.findAll(startMovieId, targetMovieIds, userFileSupplier);
+    }
+
+    /**
+     * Finds up to {@code count} alternative paths between two movies, in order of increasing distance.
+     * The first one is the path returned by {@link #find(int, int, String)}.
+     */
+    public List<MoviePath> findAlternatives(int startMovieId, int targetMovieId, int count, String userFile) {
+        initPathFinder();
+        IOExceptionThrowingSupplier<InputStream> streamSupplier = userFile == null ? null : () -> open(userFile);
+        return findAlternatives(startMovieId, targetMovieId, count, streamSupplier);
+    }
+
+    public List<MoviePath> findAlternatives(int startMovieId, int targetMovieId, int count,
+            IOExceptionThrowingSupplier<InputStream> userFileSupplier) {
+        initPathFinder();
+        Iterator<MoviePath> alternatives = finder.findAlternatives(startMovieId, targetMovieId, userFileSupplier);
+        List<MoviePath> paths = new ArrayList<>(count);
+        while (paths.size() < count && alternatives.hasNext()) {
+            paths.add(alternatives.next());
+        }
+        return paths;
+    }
+
+    /**
+     * Finds the movies with the most votes matching a search term, such as the start of a title being
+     * typed, see {@link MovieLookup#complete(String, int)}.
+     */
     public List<String> searchMovie(String term) {
         initSearch();
         long start = System.currentTimeMillis();
-        List<Movie> result = movieLookup.search(term);
+        List<Movie> result = movieLookup.complete(term, MAX_RESULTS + 1);
         LOG.debug("Took {} ms", System.currentTimeMillis() - start);
         if (result.isEmpty()) {
             return List.of();
         }
         List<String> output = result
                 .stream()
-                .limit(10)
+                .limit(MAX_RESULTS)
                 .map(m -> m.getTitle() + ": ID=" + m.getId())
                 .collect(Collectors.toList());
         if (result.size() > MAX_RESULTS) {
@@ -66,6 +201,25 @@ public class Server {
         return output;
     }
 
+    /**
+     * Finds movies similar to a movie for the user, one from each of the nearest clusters.
+     */
+    public List<Movie> findSimilar(int movieId, String userFile) {
+        initPathFinder();
+        IOExceptionThrowingSupplier<InputStream> streamSupplier = userFile == null ? null : () -> open(userFile);
+        return finder.findSimilar(movieId, MAX_RESULTS, streamSupplier);
+    }
+
+    /**
+     * Finds movies similar to a movie for the user, keeping {@code ef} candidates during the search, see
+     * {@link PathFinder#findSimilar(int, int, int, IOExceptionThrowingSupplier)}.
+     */
+    public List<Movie> findSimilar(int movieId, int ef, String userFile) {
+        initPathFinder();
+        IOExceptionThrowingSupplier<InputStream> streamSupplier = userFile == null ? null : () -> open(userFile);
+        return finder.findSimilar(movieId, MAX_RESULTS, ef, streamSupplier);
+    }
+
     public Prediction predict(int movieId) {
         initPathFinder();
         return finder.predict(movieId, PathFinder.PredictionKernel.INVERSE_PROPORTIONAL);
@@ -85,7 +239,8 @@ public class Server {
     }
 
     /**
-     * Initializes and preloads resources needed for finding paths. Can be used with e.g. Snapstart.
+     * Initializes and preloads resources needed for finding paths, including the search indexes of the
+     * default profile such as its landmarks. Can be used with e.g. Snapstart.
      */
     public void initPathFinder() {
         if (finder == null) {
@@ -101,10 +256,180 @@ public class Server {
                 LOG.error("Could not read default user ratings at '{}'", DEFAULT_USER_FILE);
                 throw new IllegalStateException("Could not read default user ratings at " + DEFAULT_USER_FILE);
             }
-            finder = new PathFinder(movieLookup, tasteSpace, defaultUserData, USER_DIMENSIONS, DimensionAnalyser.MIDPOINT_FUNCTION);
+            ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+            if (cacheDirectory != null && makePrivate(cacheDirectory)) {
+                finder = cachedPathFinder(tasteSpace, defaultUserData, pool);
+            } else {
+                finder = new PathFinder(movieLookup, tasteSpace, defaultUserData, USER_DIMENSIONS,
+                        ANALYSER, pool, userLayout);
+            }
+        }
+    }
+
+    /**
+     * Writes the distances of the default profile to a gzipped file, to be packaged as the resource
+     * {@value #DEFAULT_DISTANCES_PATH}. At startup, the packaged distances are then extracted to a file
+     * in the cache directory and memory-mapped, instead of being computed. The file is tied to the
+     * taste-space, the default user file, the analysis and the version of the distance computation by
+     * a checksum, so a stale file is detected, and the distances are then computed as usual. The file
+     * is only used if a cache directory was given, see {@link #Server(int, DistanceMatrix.Layout, Path)}.
+     * @param file file to write
+     * @throws IOException if the file could not be written
+     */
+    public void exportDefaultDistances(Path file) throws IOException {
+        initPathFinder();
+        long start = System.currentTimeMillis();
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file), 65536)) {
+            finder.getDefaultDistances().write(out, defaultChecksum());
+        }
+        LOG.info("Wrote default distances to '{}' in {} ms", file, System.currentTimeMillis() - start);
+    }
+
+    // Creates the PathFinder from the cached default distances and indexes, and caches those which
+    // were missing, stale or corrupted for the next startup
+    private PathFinder cachedPathFinder(TasteSpace tasteSpace, UserData defaultUserData, ForkJoinPool pool) {
+        long checksum = defaultChecksum();
+        DistanceMatrix defaultDistances = mapDefaultDistances(checksum);
+        ProfileIndexes defaultIndexes = readDefaultIndexes(checksum);
+        PathFinder pathFinder = new PathFinder(movieLookup, tasteSpace, defaultUserData, USER_DIMENSIONS,
+                ANALYSER, pool, userLayout, defaultDistances, DistanceMatrix.Encoding.FLOAT, defaultIndexes);
+        if (defaultDistances == null) {
+            cache(DISTANCE_CACHE_FILE, out -> pathFinder.getDefaultDistances().write(out, checksum));
+        }
+        if (defaultIndexes == null) {
+            cache(INDEXES_CACHE_FILE, out -> pathFinder.getDefaultIndexes().write(out, checksum));
+        }
+        return pathFinder;
+    }
+
+    // Maps the cached default distances, extracting the packaged ones first if the cache is missing,
+    // stale or corrupted. Returns null if neither is up to date
+    private DistanceMatrix mapDefaultDistances(long checksum) {
+        Path cache = cacheDirectory.resolve(DISTANCE_CACHE_FILE);
+        try {
+            long start = System.currentTimeMillis();
+            DistanceMatrix distances = Files.exists(cache) ? DistanceMatrix.map(cache, checksum) : null;
+            if (distances == null) {
+                InputStream in = Thread.currentThread().getContextClassLoader()
+                                       .getResourceAsStream(DEFAULT_DISTANCES_PATH);
+                if (in == null) {
+                    LOG.info("No prebuilt default distances at '{}'", DEFAULT_DISTANCES_PATH);
+                    return null;
+                }
+                try (InputStream gzip = new GZIPInputStream(in, 65536)) {
+                    replace(cache, gzip::transferTo);
+                }
+                distances = DistanceMatrix.map(cache, checksum);
+            }
+            if (distances != null) {
+                LOG.info("Mapped default distances from '{}' in {} ms", cache, System.currentTimeMillis() - start);
+            }
+            return distances;
+        } catch (IOException e) {
+            LOG.warn("Could not map default distances from '{}'. Message: {}", cache, e.getMessage());
+            return null;
+        }
+    }
+
+    // Reads the cached default indexes. Returns null if they are missing, stale or corrupted
+    private ProfileIndexes readDefaultIndexes(long checksum) {
+        Path cache = cacheDirectory.resolve(INDEXES_CACHE_FILE);
+        if (!Files.exists(cache)) {
+            return null;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            ProfileIndexes indexes = ProfileIndexes.read(cache, checksum);
+            if (indexes != null) {
+                LOG.info("Read default indexes from '{}' in {} ms", cache, System.currentTimeMillis() - start);
+            }
+            return indexes;
+        } catch (IOException e) {
+            LOG.warn("Could not read default indexes from '{}'. Message: {}", cache, e.getMessage());
+            return null;
+        }
+    }
+
+    private void cache(String fileName, IOExceptionThrowingConsumer<OutputStream> writer) {
+        Path cache = cacheDirectory.resolve(fileName);
+        try {
+            replace(cache, writer);
+            LOG.info("Cached '{}'", cache);
+        } catch (IOException e) {
+            LOG.warn("Could not cache '{}'. Message: {}", cache, e.getMessage());
         }
     }
 
+    // Creates the directory with owner-only permissions if missing. Returns false if it is not a directory
+    // of the current user which only that user may access
+    private static boolean makePrivate(Path directory) {
+        boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+        try {
+            if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+                if (posix) {
+                    Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                } else {
+                    Files.createDirectories(directory);
+                }
+            }
+            if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+                LOG.warn("Not caching at '{}' as it is not a directory", directory);
+                return false;
+            }
+            if (!posix) {
+                return true; // permissions cannot be checked
+            }
+            PosixFileAttributes attributes = Files.getFileAttributeView(directory, PosixFileAttributeView.class,
+                    LinkOption.NOFOLLOW_LINKS).readAttributes();
+            UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService()
+                                          .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!attributes.owner().equals(user) || !OWNER_ONLY.containsAll(attributes.permissions())) {
+                LOG.warn("Not caching at '{}' as other users may access it", directory);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not use cache directory '{}'. Message: {}", directory, e.getMessage());
+            return false;
+        }
+    }
+
+    // Writes a temporary file and moves it into place, leaving any mapping of the old file intact
+    private static void replace(Path file, IOExceptionThrowingConsumer<OutputStream> writer) throws IOException {
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                writer.accept(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // CRC-32 of the compressed resources, parameters and version of the code the default distances and
+    // indexes are computed from
+    private static long defaultChecksum() {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[65536];
+        int read;
+        for (String path : new String[] {TASTESPACE_PATH, DEFAULT_USER_FILE}) {
+            try (InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(path)) {
+                if (in == null) {
+                    throw new IllegalStateException("Could not open resource at " + path);
+                }
+                while ((read = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read resource at " + path, e);
+            }
+        }
+        crc.update(ByteBuffer.allocate(8).putInt(CACHE_VERSION).putInt(USER_DIMENSIONS).flip());
+        crc.update(ANALYSER.getName().getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
     private <T> T read(String path, ExceptionThrowingFunction<IOExceptionThrowingSupplier<InputStream>, T> fn) {
         try {
             long start = System.currentTimeMillis();
@@ -131,4 +456,8 @@ public class Server {
         R apply(T t) throws Exception;
     }
 
+    private interface IOExceptionThrowingConsumer<T> {
+        void accept(T t) throws IOException;
+    }
+
 }
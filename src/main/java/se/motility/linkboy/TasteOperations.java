@@ -12,6 +12,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.motility.linkboy.model.DimensionStat;
 import se.motility.linkboy.model.DistanceMatrix;
+import se.motility.linkboy.model.Matrix;
 import se.motility.linkboy.model.TasteSpace;
 import se.motility.linkboy.model.UserData;
 
@@ -26,10 +27,71 @@ public class TasteOperations {
             .reversed();
 
     public static DistanceMatrix scaleToUser(TasteSpace space, UserData userdata, int rank, DimensionAnalyser analyser) {
+        return scaleToUser(space, userdata, rank, analyser, DistanceMatrix.Layout.TRIANGULAR);
+    }
+
+    public static DistanceMatrix scaleToUser(TasteSpace space, UserData userdata, int rank, DimensionAnalyser analyser,
+            DistanceMatrix.Layout layout) {
+        TasteSpace scaled = scaleSubspace(space, userdata, rank, analyser);
+        return DistanceMatrix.compute(scaled.getClusterIds(), scaled.getCoordinates(), layout);
+    }
+
+    /**
+     * Picks the {@code rank} dimensions most relevant to the user, and scales each one by how much of
+     * the user's ratings it explains. The distances in this subspace can then be computed with any of
+     * the options of {@link DistanceMatrix}.
+     * @return the scaled subspace
+     */
+    public static TasteSpace scaleSubspace(TasteSpace space, UserData userdata, int rank, DimensionAnalyser analyser) {
+        return scaleSubspace(space, userdata, rank, analyser, null);
+    }
+
+    /**
+     * Scales the subspace of the user like {@link #scaleSubspace(TasteSpace, UserData, int, DimensionAnalyser)},
+     * and also provides the scaling as weights of the full space, see {@link #weights}. The analysis
+     * samples from a fixed seed, so the same user data always gives the same subspace and weights.
+     * @param weights array of {@link TasteSpace#getDimensions()} elements to store the weight of each
+     *                dimension in, or {@code null}
+     * @return the scaled subspace
+     */
+    public static TasteSpace scaleSubspace(TasteSpace space, UserData userdata, int rank, DimensionAnalyser analyser,
+            float[] weights) {
+        int[] dims = new int[rank];
+        float[] factors = scaling(userdata, rank, analyser, dims);
+        if (weights != null) {
+            toWeights(dims, factors, weights);
+        }
+
+        // Scale global set so that local subset has a variance of the explained share. The scaled
+        // coordinates are stored column-major, from which the distances are computed without copying
+        Matrix global = space.subspace(dims).getCoordinates(); // only focus on the dimensions relevant to the user
+        Matrix scaled = new Matrix(rank, space.getNumClusters()).transpose();
+        for (int i = 0; i < rank; i++) {
+            VectorMath.axpb(global.col(i), factors[i], 0f, scaled.col(i));
+        }
+        return new TasteSpace(space.getClusterIndexes(), scaled);
+    }
+
+    /**
+     * Weighs the dimensions of the full space like {@link #scaleSubspace(TasteSpace, UserData, int, DimensionAnalyser)}
+     * scales them, i.e. by the square of the scale factor of each dimension picked and zero for all the
+     * others. The weighted distance {@code sqrt(Σ w[d]·(x[d] - y[d])²)} between two points of the full
+     * space is then their distance in the user's subspace, without computing the subspace.
+     * @return weight of each dimension
+     */
+    public static float[] weights(TasteSpace space, UserData userdata, int rank, DimensionAnalyser analyser) {
+        int[] dims = new int[rank];
+        float[] factors = scaling(userdata, rank, analyser, dims);
+        float[] weights = new float[space.getDimensions()];
+        toWeights(dims, factors, weights);
+        return weights;
+    }
+
+    // Picks the dimensions most relevant to the user, in order of relevance, and returns their scale factors
+    private static float[] scaling(UserData userdata, int rank, DimensionAnalyser analyser, int[] dims) {
         DimensionStat[] stats = analyser.analyse(userdata);
         Arrays.sort(stats, COMPARATOR);
 
-        int[] dims = new int[rank];
         float[] explained = new float[rank];
         for (int i = 0; i < rank; i++) {
             dims[i] = stats[i].getDimIndex();
@@ -37,21 +99,20 @@ public class TasteOperations {
         }
         LOG.info("User preference from analyser '{}': {}", analyser.getName(), formatPreference(dims, explained));
 
-        TasteSpace subspace = space.subspace(dims); // only focus on the dimensions relevant to the user
-        TasteSpace localSpace = userdata.getSpace().subspace(dims);
-
-        float[][] userCoordsRaw = subspace.getCoordinates();
-        float[][] localColSpace = VectorMath.transpose(localSpace.getCoordinates());
-        float[][] normalizedCols = VectorMath.byIndexedCol(userCoordsRaw, (i,x) -> normalize(x, localColSpace[i], explained[i]));
-
-        return DistanceMatrix.compute(subspace.getClusterIds(), VectorMath.transpose(normalizedCols));
+        Matrix local = userdata.getSpace().subspace(dims).getCoordinates();
+        float[] variances = VectorMath.byCol(local, VectorMath::var);
+        float[] factors = new float[rank];
+        for (int i = 0; i < rank; i++) {
+            factors[i] = (float) Math.sqrt(explained[i] / variances[i]);
+        }
+        return factors;
     }
 
-    // Scale global set so that local subset has a variance of 'scale'
-    private static float[] normalize(float[] xglobal, float[] xlocal, float scale) {
-        float v = VectorMath.var(xlocal);
-        float a = (float) Math.sqrt(scale / v);
-        return VectorMath.axpb(xglobal, a,0f);
+    private static void toWeights(int[] dims, float[] factors, float[] weights) {
+        Arrays.fill(weights, 0f);
+        for (int i = 0; i < dims.length; i++) {
+            weights[dims[i]] = factors[i] * factors[i];
+        }
     }
 
     private static String formatPreference(int[] dims, float[] explained) {
@@ -5,9 +5,11 @@
  */
 package se.motility.linkboy;
 
-import java.util.function.BiFunction;
+import java.util.Arrays;
 import java.util.function.ToDoubleFunction;
 
+import se.motility.linkboy.model.Matrix;
+
 /**
  * Utility class providing various vector and matrix operations.
  *
@@ -15,79 +17,34 @@ import java.util.function.ToDoubleFunction;
  */
 public class VectorMath {
 
-    /**
-     * Creates and returns a transposed copy of the provided matrix
-     * @param matrix to transpose
-     * @return a transposed copy of provided matrix
-     */
-    public static float[][] transpose(float[][] matrix) {
-        final int n = matrix.length;
-        final int k = n > 0 ? matrix[0].length : 0;
-        float[][] transposed = new float[k][n];
-        float[] row;
-        for (int i = 0; i < n; i++) {
-            row = matrix[i];
-            for (int j = 0; j < k; j++) {
-                transposed[j][i] = row[j]; // is this slow?
-            }
-        }
-        return transposed;
-    }
-
     /**
      * Applies the provided {@code R^d -> R} function to each row of the provided {@code nxd} matrix
-     * and collects and returns the result
+     * and collects and returns the result. Each row is copied into the same array before the function
+     * is applied, which must therefore not keep a reference to it.
      * @param matrix to operate on
      * @param fn {@code R^d -> R} function to apply to each row
      * @return a n-dimensional vector of the results
      */
-    public static float[] byRow(float[][] matrix, ToDoubleFunction<float[]> fn) {
-        final int k = matrix.length;
+    public static float[] byRow(Matrix matrix, ToDoubleFunction<float[]> fn) {
+        final int k = matrix.getRows();
         float[] result = new float[k];
+        float[] row = new float[matrix.getCols()];
         for (int i = 0; i < k; i++) {
-            result[i] = (float) fn.applyAsDouble(matrix[i]);
-        }
-        return result;
-    }
-
-    /**
-     * Applies the provided {@code R^d -> R} function to each row of the provided {@code nxd} matrix
-     * and collects and returns the result
-     * @param matrix to operate on
-     * @param fn {@code R^d -> R} function to apply to each row
-     * @return a n-dimensional vector of the results
-     */
-    public static float[][] byIndexedRow(float[][] matrix, BiFunction<Integer, float[], float[]> fn) {
-        final int k = matrix.length;
-        float[][] result = new float[matrix.length][matrix[0].length];
-        for (int i = 0; i < k; i++) {
-            result[i] = fn.apply(i, matrix[i]);
+            result[i] = (float) fn.applyAsDouble(matrix.getRow(i, row));
         }
         return result;
     }
 
     /**
      * Applies the provided {@code R^n -> R} function to each column of the provided {@code nxd} matrix
-     * and collects and returns the result
-     * @param matrix to operate on
-     * @param fn {@code R^n -> R} function to apply to each column
-     * @return a d-dimensional vector of the results
-     */
-    public static float[] byCol(float[][] matrix, ToDoubleFunction<float[]> fn) {
-        float[][] transpose = transpose(matrix);
-        return byRow(transpose, fn);
-    }
-
-    /**
-     * Applies the provided {@code R^n -> R} function to each column of the provided {@code nxd} matrix
-     * and collects and returns the result
+     * and collects and returns the result. Each column is copied into the same array before the
+     * function is applied, which must therefore not keep a reference to it.
      * @param matrix to operate on
      * @param fn {@code R^n -> R} function to apply to each column
      * @return a d-dimensional vector of the results
      */
-    public static float[][] byIndexedCol(float[][] matrix, BiFunction<Integer, float[], float[]> fn) {
-        float[][] transpose = transpose(matrix);
-        return byIndexedRow(transpose, fn);
+    public static float[] byCol(Matrix matrix, ToDoubleFunction<float[]> fn) {
+        return byRow(matrix.transpose(), fn);
     }
 
     /**
@@ -104,6 +61,74 @@ public class VectorMath {
         return (float) Math.sqrt(result);
     }
 
+    /**
+     * Calculates the Euclidean norm between two points of a column-major ({@code dxn}) matrix. The
+     * result is identical to calling {@link #norm2(float[], float[])} with the two points.
+     * @param columns dense column-major matrix of points, see {@link Matrix#transpose()}
+     * @param i index of the first point
+     * @param j index of the second point
+     * @return Euclidean norm between the two points
+     */
+    public static float norm2(Matrix columns, int i, int j) {
+        final float[] data = columns.getData();
+        final int n = columns.getCols();
+        double result = 0;
+        float p1;
+        float p2;
+        for (int d = 0, p = columns.getOffset(); d < columns.getRows(); d++, p += n) {
+            p1 = data[p + i];
+            p2 = data[p + j];
+            result += p1*p1 - 2*p1*p2 + p2*p2;
+        }
+        return (float) Math.sqrt(result);
+    }
+
+    /**
+     * Calculates the Euclidean norms between one point and a block of points at once. The block is
+     * read from a column-major ({@code dxn}) matrix, so that the innermost loop runs over contiguous
+     * elements of the same dimension, which the JIT compiler turns into SIMD instructions. The result
+     * is identical to calling {@link #norm2(float[], float[])} for each point {@code q} of the block,
+     * as {@code norm2(p, q)} if the point comes first and as {@code norm2(q, p)} otherwise.
+     * @param p point
+     * @param first whether the point is the first argument of each norm
+     * @param columns dense column-major matrix of points, see {@link Matrix#transpose()}
+     * @param from index of the first point of the block
+     * @param to index after the last point of the block
+     * @param sums array of at least {@code to - from} elements to accumulate the squared norms in
+     * @param result array of at least {@code to - from} elements to store the norms in
+     */
+    public static void norm2(float[] p, boolean first, Matrix columns, int from, int to, double[] sums,
+            float[] result) {
+        final int len = to - from;
+        final float[] data = columns.getData();
+        final int n = columns.getCols();
+        Arrays.fill(sums, 0, len, 0d);
+        float c;
+        float cc;
+        float x;
+        int start;
+        for (int d = 0; d < p.length; d++) {
+            c = p[d];
+            cc = c*c;
+            start = columns.getOffset() + d * n + from;
+            // Same terms, evaluated in the same order, as norm2(float[], float[])
+            if (first) {
+                for (int j = 0; j < len; j++) {
+                    x = data[start + j];
+                    sums[j] += cc - 2*c*x + x*x;
+                }
+            } else {
+                for (int j = 0; j < len; j++) {
+                    x = data[start + j];
+                    sums[j] += x*x - 2*x*c + cc;
+                }
+            }
+        }
+        for (int j = 0; j < len; j++) {
+            result[j] = (float) Math.sqrt(sums[j]);
+        }
+    }
+
     /**
      * Calculates the mean value of the provided vector of values.
      * @param x vector of values
@@ -164,6 +189,22 @@ public class VectorMath {
         return result;
     }
 
+    /**
+     * Scale and translate all elements of a matrix by scalars {@code a} and {@code b}, respectively,
+     * such as a column of it, see {@link Matrix#col(int)}.
+     * @param x matrix
+     * @param a scale factor
+     * @param b translation term
+     * @param result matrix of the same size to store the result in, possibly a view of another matrix
+     */
+    public static void axpb(Matrix x, float a, float b, Matrix result) {
+        for (int i = 0; i < x.getRows(); i++) {
+            for (int j = 0; j < x.getCols(); j++) {
+                result.set(i, j, a*x.get(i, j) + b);
+            }
+        }
+    }
+
     /**
      * Element-wise addition of the two provided n-dimensional vectors.
      * Returns a copy of the result.
@@ -17,6 +17,8 @@ public class FindPathRequestHandler implements RequestHandler<Map<String, String
 
     private static final String START_ID = "startId";
     private static final String TARGET_ID = "targetId";
+    // Time left for building the response after the path search
+    private static final long RESPONSE_MARGIN_MS = 500L;
 
     // Initialize last
     private static final ServerResource SERVER_RESOURCE = new ServerResource(true, true);
@@ -31,7 +33,8 @@ public class FindPathRequestHandler implements RequestHandler<Map<String, String
         int targetMovieId = Util.parseMovieId(targetId, TARGET_ID);
 
         LOG.info("Trying to find path between {} and {}", startMovieId, targetMovieId);
-        MoviePath result = SERVER_RESOURCE.server().find(startMovieId, targetMovieId, (String) null);
+        long deadline = System.currentTimeMillis() + context.getRemainingTimeInMillis() - RESPONSE_MARGIN_MS;
+        MoviePath result = SERVER_RESOURCE.server().find(startMovieId, targetMovieId, (String) null, deadline);
         if (result == null) {
             return "{\"message\": \"Could not find a path. Please check your input or try a different movie.\"}";
         }
@@ -41,6 +44,8 @@ public class FindPathRequestHandler implements RequestHandler<Map<String, String
         response.append("{")
                 .append("\"distance\": \"")
                 .append(Math.round(result.getDistance() * 1e4) / 1e4) //trick to round double to 4 decimals
+                .append("\", \"optimal\": \"")
+                .append(result.isOptimal())
                 .append("\", \"targetMovie\": \"")
                 .append(result.getMov2().getTitle())
                 .append(": ID=")
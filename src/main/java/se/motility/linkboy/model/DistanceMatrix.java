@@ -5,80 +5,784 @@
  */
 package se.motility.linkboy.model;
 
-import it.unimi.dsi.fastutil.ints.Int2IntMap;
-import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.motility.linkboy.VectorMath;
 
 /**
+ * Pairwise distances between all clusters. The distances can be stored in different layouts, trading
+ * memory for the speed of reading whole rows, see {@link Layout}. Stored distances can also be
+ * quantized to fewer bits, see {@link Encoding}.
+ * <p>
+ * Matrices computed with a {@link MatrixBufferPool} borrow their storage from the pool, and must be
+ * closed once they are no longer used. Closing any other matrix has no effect.
+ * <p>
+ * A matrix can be written to a file with {@link #write(OutputStream, long)}, and memory-mapped from
+ * it with {@link #map(Path, long)} instead of being computed again.
+ *
  * @author M Tegling
  */
-public class DistanceMatrix {
+public abstract class DistanceMatrix implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(DistanceMatrix.class);
+    // Side of the square tiles the matrix is computed in, small enough for a tile to stay in the cache
+    private static final int TILE_SIZE = 256;
+    // Number of rows cached by the lazy layout
+    private static final int ROW_CACHE_SIZE = 16;
+    // File format of written matrices: magic number, version, checksum, number of clusters, the cluster
+    // IDs, all rows of the symmetric matrix and a CRC-32 of everything before it, in little-endian byte order
+    private static final int MAGIC = 0x4d444c42; // "LBDM"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 20;
+    private static final int TRAILER_BYTES = 4;
+
+    public enum Layout {
+        /**
+         * The upper triangle, including the diagonal, packed row by row into a single array. Uses half
+         * the memory of the symmetric layout, but the part of a row below the diagonal is read column-wise.
+         */
+        TRIANGULAR,
+        /**
+         * The full symmetric matrix in a single row-major array. Every row is contiguous, which makes
+         * row scans fast, at the cost of storing each distance twice.
+         */
+        SYMMETRIC,
+        /**
+         * No distances at all, only the coordinates of the clusters, which are used to compute each
+         * distance on demand. A few recently read rows are cached. Uses O(n·d) memory instead of O(n²)
+         * for {@code d} dimensions, at the cost of slower reads. The distances are identical to those
+         * of the other layouts.
+         */
+        LAZY
+    }
+
+    /**
+     * How stored distances are encoded. Quantizing the distances shrinks the matrix at the cost of
+     * precision, which may turn distances that differ slightly into ties. Distances are decoded on
+     * each read.
+     */
+    public enum Encoding {
+        /**
+         * 32-bit floats, exactly as computed.
+         */
+        FLOAT,
+        /**
+         * 16-bit IEEE 754 half-precision floats, at half the size. The relative error is at most
+         * 2^-11 (about 0.05%), while distances below 2^-14 have an absolute error of at most 2^-25.
+         * Distances may not exceed 65504.
+         */
+        HALF,
+        /**
+         * 16-bit fixed point, scaled to the largest distance in the matrix, at half the size. The
+         * absolute error is at most {@code max / 131070}, plus the rounding of the decoded float.
+         */
+        FIXED16,
+        /**
+         * 8-bit fixed point, scaled to the largest distance in the matrix, at a quarter of the size.
+         * The absolute error is at most {@code max / 510}, plus the rounding of the decoded float.
+         * Only suitable for coarse ranking.
+         */
+        FIXED8
+    }
 
-    private final Int2IntMap idToIndex;
-    private final float[][] distanceMatrix;
+    private final IdIndex clusters;
+    final int n;
+    // Buffer borrowed from a pool, if any, to return when closed
+    private MatrixBufferPool pool;
+    private float[] borrowed;
+
+    public static DistanceMatrix compute(int[] clusterIds, Matrix coordinates) {
+        return compute(clusterIds, coordinates, Layout.TRIANGULAR);
+    }
+
+    public static DistanceMatrix compute(int[] clusterIds, Matrix coordinates, Layout layout) {
+        return compute(clusterIds, coordinates, layout, null, 0);
+    }
+
+    /**
+     * Computes the distances between all clusters, in parallel using the provided pool if there are
+     * at least {@code parallelThreshold} clusters. The upper triangle of the matrix is split into
+     * square tiles, which are computed independently of each other. Each distance is computed in
+     * exactly the same way regardless of the tiling, so the result does not depend on the parallelism.
+     * <p>
+     * The distances are computed from the coordinates in column-major order. If the coordinates are a
+     * transposed view of a dense matrix, such as those of {@link TasteSpace}s scaled by
+     * {@code TasteOperations}, they are read in place, and otherwise copied once.
+     * <p>
+     * The {@link Layout#LAZY} layout computes nothing up front, and keeps a reference to the column-major
+     * coordinates, which must not be modified afterwards.
+     * @param clusterIds cluster IDs
+     * @param coordinates {@code nxd} matrix of the coordinates of each cluster
+     * @param layout storage layout
+     * @param pool pool to use, or {@code null} to compute sequentially
+     * @param parallelThreshold minimum number of clusters to compute in parallel
+     * @return distance matrix
+     */
+    public static DistanceMatrix compute(int[] clusterIds, Matrix coordinates, Layout layout,
+            ForkJoinPool pool, int parallelThreshold) {
+        return compute(clusterIds, coordinates, layout, pool, parallelThreshold, null);
+    }
 
-    public static DistanceMatrix compute(int[] clusterIds, float[][] coordinates) {
-        int n = clusterIds.length;
-        Int2IntMap idToIndex = new Int2IntOpenHashMap(clusterIds.length);
-        for (int i = 0; i < clusterIds.length; i++) {
-            idToIndex.put(clusterIds[i], i);
+    /**
+     * Computes the distances between all clusters like
+     * {@link #compute(int[], Matrix, Layout, ForkJoinPool, int)}, storing them in a buffer
+     * borrowed from the provided pool. The matrix must then be closed to return the buffer.
+     * @param buffers pool to borrow the storage from, or {@code null} to allocate it
+     * @return distance matrix
+     */
+    public static DistanceMatrix compute(int[] clusterIds, Matrix coordinates, Layout layout,
+            ForkJoinPool pool, int parallelThreshold, MatrixBufferPool buffers) {
+        return compute(IdIndex.of(clusterIds), coordinates, layout, pool, parallelThreshold, buffers);
+    }
+
+    /**
+     * Computes the distances between all clusters like
+     * {@link #compute(int[], Matrix, Layout, ForkJoinPool, int, MatrixBufferPool)}, sharing the
+     * index of the cluster IDs with a taste-space, see {@link TasteSpace#getClusterIndexes()}.
+     * @param clusters cluster IDs in index order
+     * @return distance matrix
+     */
+    public static DistanceMatrix compute(IdIndex clusters, Matrix coordinates, Layout layout,
+            ForkJoinPool pool, int parallelThreshold, MatrixBufferPool buffers) {
+        int n = clusters.size();
+        if (layout == Layout.LAZY) {
+            return new Lazy(clusters, coordinates.transpose().compact(), ROW_CACHE_SIZE);
         }
         long start = System.currentTimeMillis();
-        float[][] distanceMatrix = new float[n][n];
+        DistanceMatrix matrix = layout == Layout.SYMMETRIC
+                ? new Symmetric(clusters, buffers)
+                : new Triangular(clusters, buffers);
 
-         float[] coord1;
-        float[] coord2;
-        float norm;
-        for (int i = 0; i < n; i++) {
-            coord1 = coordinates[i];
-            for (int j = i + 1; j < n; j++) {
-                coord2 = coordinates[j];
-                norm = VectorMath.norm2(coord1, coord2);
-                distanceMatrix[i][j] = norm;
+        // Tiles on and above the diagonal, ordered by row and then by column
+        int side = (n + TILE_SIZE - 1) / TILE_SIZE;
+        int[] tiles = new int[side * (side + 1) / 2];
+        int t = 0;
+        for (int row = 0; row < side; row++) {
+            for (int col = row; col < side; col++) {
+                tiles[t++] = row * side + col;
             }
         }
-        LOG.info("Distance matrix computed. Took {} ms", System.currentTimeMillis() - start);
-        return new DistanceMatrix(idToIndex, distanceMatrix);
+        Tiling tiling = new Tiling(matrix, coordinates.transpose().compact(), side, tiles);
+        boolean parallel = pool != null && n >= parallelThreshold && tiles.length > 1;
+        if (parallel) {
+            pool.invoke(new TileTask(tiling, 0, tiles.length));
+        } else {
+            tiling.compute(0, tiles.length);
+        }
+        LOG.info("Distance matrix computed{}. Took {} ms", parallel ? " in parallel" : "",
+                System.currentTimeMillis() - start);
+        return matrix;
     }
 
-    private DistanceMatrix(Int2IntMap idToIndex, float[][] distanceMatrix) {
-        this.idToIndex = idToIndex;
-        this.distanceMatrix = distanceMatrix;
+    private DistanceMatrix(IdIndex clusters) {
+        this.clusters = clusters;
+        this.n = clusters.size();
+    }
+
+    /**
+     * Returns the storage of this matrix to the pool it was borrowed from, if any. The matrix must not
+     * be used afterwards. Closing it again has no effect.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.release(borrowed);
+            pool = null;
+            borrowed = null;
+        }
+    }
+
+    // Borrows a buffer from the pool, if any, to return when closed
+    float[] borrow(MatrixBufferPool buffers, int length) {
+        if (buffers == null) {
+            return new float[length];
+        }
+        this.pool = buffers;
+        this.borrowed = buffers.acquire(length);
+        return borrowed;
     }
 
+    /**
+     * Memory-maps a matrix previously written by {@link #write(OutputStream, long)}. The distances are
+     * read from the file on demand, and are not loaded onto the heap. The mapped matrix has the
+     * {@link Layout#SYMMETRIC} layout, and the file must not be modified while it is in use. The whole
+     * file is read once to verify its CRC-32, so that a corrupted file is rejected.
+     * @param file uncompressed matrix file
+     * @param checksum checksum of the data the matrix was computed from
+     * @return mapped matrix, or {@code null} if the file is not a matrix file, has another checksum or
+     *         is corrupted
+     * @throws IOException if the file cannot be read
+     */
+    public static DistanceMatrix map(Path file, long checksum) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                LOG.warn("Distance matrix file '{}' is truncated", file);
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            LOG.warn("'{}' is not a distance matrix file of version {}", file, VERSION);
+            return null;
+        }
+        if (buffer.getLong(8) != checksum) {
+            LOG.info("Distance matrix file '{}' is stale", file);
+            return null;
+        }
+        int n = buffer.getInt(16);
+        long size = HEADER_BYTES + 4L * n + 4L * n * n + TRAILER_BYTES;
+        if (n < 0 || buffer.capacity() != size) {
+            LOG.warn("Distance matrix file '{}' has {} bytes, expected {}", file, buffer.capacity(), size);
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(0).limit((int) size - TRAILER_BYTES));
+        if ((int) crc.getValue() != buffer.getInt((int) size - TRAILER_BYTES)) {
+            LOG.warn("Distance matrix file '{}' is corrupted", file);
+            return null;
+        }
+        int[] ids = new int[n];
+        buffer.position(HEADER_BYTES);
+        buffer.asIntBuffer().get(ids);
+        buffer.position(HEADER_BYTES + 4 * n);
+        return new Mapped(IdIndex.of(ids), buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer());
+    }
+
+    /**
+     * Writes the distances of this matrix, decoded if quantized, along with the cluster IDs and a
+     * checksum of the data it was computed from, see {@link #map(Path, long)}. The output takes
+     * {@code 4n² + 4n + 24} bytes for {@code n} clusters, and is not closed.
+     * @param out stream to write to
+     * @param checksum checksum of the data the matrix was computed from, such as a CRC-32 of its
+     *                 input files, by which a stale file can be detected
+     * @throws IOException if the matrix could not be written
+     */
+    public void write(OutputStream out, long checksum) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 4 * n).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(checksum).putInt(n);
+        buffer.asIntBuffer().put(clusters.getIds());
+        buffer.position(buffer.position() + 4 * n);
+        writeFully(channel, buffer, crc);
+        float[] row = new float[n];
+        for (int i = 0; i < n; i++) {
+            buffer.clear();
+            buffer.asFloatBuffer().put(getRow(i, row));
+            buffer.position(4 * n);
+            writeFully(channel, buffer, crc);
+        }
+        buffer.clear();
+        buffer.putInt((int) crc.getValue());
+        writeFully(channel, buffer, null);
+    }
+
+    // Writes the buffer, adding it to the CRC first if provided
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        if (crc != null) {
+            crc.update(buffer.duplicate());
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public IdIndex getClusterIndexes() {
+        return clusters;
+    }
+
+    /**
+     * @param clusterId cluster ID
+     * @return index of the cluster, or {@link IdIndex#MISSING} if unknown
+     */
     public int getClusterIndex(int clusterId) {
-        return idToIndex.get(clusterId);
+        return clusters.getIndex(clusterId);
     }
 
-    public float getDistance(int index1, int index2) {
-        // cIdx is the array index, not the cluster ID
-        return distanceMatrix[Math.min(index1, index2)][Math.max(index1, index2)];
+    // cIdx is the array index, not the cluster ID, and must not be negative, which not all layouts check
+    public abstract float getDistance(int index1, int index2);
+
+    /**
+     * Copies the distances from a cluster to all clusters.
+     * @param index cluster index
+     * @param row array of at least {@link #getNumClusters()} elements to copy the distances to
+     * @return the provided array
+     */
+    public abstract float[] getRow(int index, float[] row);
+
+    public abstract Layout getLayout();
+
+    public Encoding getEncoding() {
+        return Encoding.FLOAT;
+    }
+
+    /**
+     * Creates a copy of this matrix, in the same layout, with its distances quantized to the given
+     * encoding. Fixed-point encodings are scaled to the largest distance in this matrix.
+     * @param encoding encoding of the copy
+     * @return quantized copy, or this matrix if the encoding is {@link Encoding#FLOAT}
+     * @throws IllegalStateException if this matrix is lazy or already quantized
+     * @throws IllegalArgumentException if a distance is too large for half-precision floats
+     */
+    public DistanceMatrix quantize(Encoding encoding) {
+        if (encoding == Encoding.FLOAT) {
+            return this;
+        }
+        if (getLayout() == Layout.LAZY || getEncoding() != Encoding.FLOAT) {
+            throw new IllegalStateException("Cannot quantize a " + getLayout() + " " + getEncoding() + " matrix");
+        }
+        long start = System.currentTimeMillis();
+        float[] row = new float[n];
+        float max = 0f;
+        for (int i = 0; i < n; i++) {
+            getRow(i, row);
+            for (int j = i + 1; j < n; j++) {
+                max = Math.max(max, row[j]);
+            }
+        }
+        if (encoding == Encoding.HALF && max > Quantized.HALF_MAX) {
+            throw new IllegalArgumentException("Largest distance " + max + " exceeds the half-precision range");
+        }
+        Quantized quantized = new Quantized(clusters, getLayout(), encoding, max);
+        for (int i = 0; i < n; i++) {
+            getRow(i, row);
+            quantized.setRow(i, row);
+        }
+        LOG.info("Distance matrix quantized to {}. Took {} ms", encoding, System.currentTimeMillis() - start);
+        return quantized;
     }
 
     // recommended to use getDistance(...) whenever possible instead
     public float getDistanceById(int clusterId1, int clusterId2) {
-        int index1 = idToIndex.get(clusterId1);
-        int index2 = idToIndex.get(clusterId2);
+        int index1 = clusters.getIndex(clusterId1);
+        int index2 = clusters.getIndex(clusterId2);
+        if (index1 == IdIndex.MISSING || index2 == IdIndex.MISSING) {
+            // a negative index may still fall inside the row-major layouts, reading a wrong distance
+            throw new IllegalArgumentException("Unknown cluster ID " + (index1 == IdIndex.MISSING ? clusterId1 : clusterId2));
+        }
         return getDistance(index1, index2);
     }
 
     public int getNumClusters() {
-        return distanceMatrix.length;
-    }
-
-//    public TasteSpace createNormalized(UnaryOperator<float[]> normalizer) {
-//        final int k = coordinates[0].length;
-//        float[][] transposed = VectorMath.transpose(coordinates); // converts it to column-major
-//        float[] column;
-//        for (int i = 0; i < k; i++) {
-//            column = transposed[i]; // normalize one whole column at a time
-//            transposed[i] = normalizer.apply(column);
-//        }
-//        return new TasteSpace(indexToId, VectorMath.transpose(transposed)); // transpose back
-//    }
+        return n;
+    }
+
+    // Sets the distances from a cluster to the clusters [from, from + length), where index < from,
+    // starting at the offset of the provided array
+    abstract void set(int index, int from, float[] distances, int offset, int length);
+
+    // Called once the distances of a tile have been set, for the rows [row, rowEnd) and the columns
+    // [col, colEnd) above the diagonal
+    void completeTile(int row, int rowEnd, int col, int colEnd) {
+    }
+
+    private static final class Triangular extends DistanceMatrix {
+        private final float[] distances;
+        // Position of the diagonal element of each row
+        private final int[] offsets;
+
+        Triangular(IdIndex clusters, MatrixBufferPool buffers) {
+            super(clusters);
+            this.offsets = triangularOffsets(n);
+            this.distances = borrow(buffers, Math.toIntExact((long) n * (n + 1) / 2));
+            for (int i = 0; i < n; i++) {
+                distances[offsets[i]] = 0f; // a borrowed buffer may hold old distances
+            }
+        }
+
+        @Override
+        public float getDistance(int index1, int index2) {
+            return index1 <= index2
+                    ? distances[offsets[index1] + index2 - index1]
+                    : distances[offsets[index2] + index1 - index2];
+        }
+
+        @Override
+        public float[] getRow(int index, float[] row) {
+            for (int j = 0; j < index; j++) {
+                row[j] = distances[offsets[j] + index - j];
+            }
+            System.arraycopy(distances, offsets[index], row, index, n - index);
+            return row;
+        }
+
+        @Override
+        public Layout getLayout() {
+            return Layout.TRIANGULAR;
+        }
+
+        @Override
+        void set(int index, int from, float[] distances, int offset, int length) {
+            System.arraycopy(distances, offset, this.distances, offsets[index] + from - index, length);
+        }
+    }
+
+    private static final class Symmetric extends DistanceMatrix {
+        private final float[] distances;
+
+        Symmetric(IdIndex clusters, MatrixBufferPool buffers) {
+            super(clusters);
+            this.distances = borrow(buffers, Math.multiplyExact(n, n));
+            for (int i = 0; i < n; i++) {
+                distances[i * n + i] = 0f; // a borrowed buffer may hold old distances
+            }
+        }
+
+        @Override
+        public float getDistance(int index1, int index2) {
+            return distances[index1 * n + index2];
+        }
+
+        @Override
+        public float[] getRow(int index, float[] row) {
+            System.arraycopy(distances, index * n, row, 0, n);
+            return row;
+        }
+
+        @Override
+        public Layout getLayout() {
+            return Layout.SYMMETRIC;
+        }
+
+        @Override
+        void set(int index, int from, float[] distances, int offset, int length) {
+            System.arraycopy(distances, offset, this.distances, index * n + from, length);
+        }
+
+        // Mirrors the tile into the lower triangle while it is still in the cache
+        @Override
+        void completeTile(int row, int rowEnd, int col, int colEnd) {
+            for (int i = row; i < rowEnd; i++) {
+                for (int j = Math.max(col, i + 1); j < colEnd; j++) {
+                    distances[j * n + i] = distances[i * n + j];
+                }
+            }
+        }
+    }
+
+    private static final class Mapped extends DistanceMatrix {
+        // Row-major distances of the symmetric matrix, backed by a memory-mapped file
+        private final FloatBuffer distances;
+
+        Mapped(IdIndex clusters, FloatBuffer distances) {
+            super(clusters);
+            this.distances = distances;
+        }
+
+        @Override
+        public float getDistance(int index1, int index2) {
+            return distances.get(index1 * n + index2);
+        }
+
+        @Override
+        public float[] getRow(int index, float[] row) {
+            FloatBuffer view = distances.duplicate(); // the position of a shared buffer is not thread-safe
+            view.position(index * n);
+            view.get(row, 0, n);
+            return row;
+        }
+
+        @Override
+        public Layout getLayout() {
+            return Layout.SYMMETRIC;
+        }
+
+        @Override
+        void set(int index, int from, float[] distances, int offset, int length) {
+            throw new UnsupportedOperationException("Mapped matrices are read-only");
+        }
+    }
+
+    private static final class Quantized extends DistanceMatrix {
+        static final float HALF_MAX = 65504f;
+
+        private final Layout layout;
+        private final Encoding encoding;
+        // Position of the diagonal element of each row in the triangular layout, otherwise null
+        private final int[] offsets;
+        private final short[] shorts;
+        private final byte[] bytes;
+        // Distance per step of a fixed-point encoding
+        private final double scale;
+
+        Quantized(IdIndex clusters, Layout layout, Encoding encoding, float max) {
+            super(clusters);
+            this.layout = layout;
+            this.encoding = encoding;
+            this.offsets = layout == Layout.TRIANGULAR ? triangularOffsets(n) : null;
+            int size = layout == Layout.TRIANGULAR
+                    ? Math.toIntExact((long) n * (n + 1) / 2)
+                    : Math.multiplyExact(n, n);
+            this.shorts = encoding == Encoding.FIXED8 ? null : new short[size];
+            this.bytes = encoding == Encoding.FIXED8 ? new byte[size] : null;
+            int steps = encoding == Encoding.FIXED8 ? 0xff : 0xffff;
+            this.scale = max > 0f ? (double) max / steps : 1d;
+        }
+
+        @Override
+        public float getDistance(int index1, int index2) {
+            return decode(position(index1, index2));
+        }
+
+        @Override
+        public float[] getRow(int index, float[] row) {
+            for (int j = 0; j < n; j++) {
+                row[j] = decode(position(index, j));
+            }
+            return row;
+        }
+
+        @Override
+        public Layout getLayout() {
+            return layout;
+        }
+
+        @Override
+        public Encoding getEncoding() {
+            return encoding;
+        }
+
+        @Override
+        void set(int index, int from, float[] distances, int offset, int length) {
+            throw new UnsupportedOperationException("Quantized matrices are copies, see quantize(Encoding)");
+        }
+
+        // Encodes the stored part of a row: from the diagonal onwards if triangular, otherwise all of it
+        void setRow(int index, float[] row) {
+            for (int j = offsets != null ? index : 0; j < n; j++) {
+                encode(position(index, j), row[j]);
+            }
+        }
+
+        private int position(int index1, int index2) {
+            if (offsets == null) {
+                return index1 * n + index2;
+            }
+            return index1 <= index2
+                    ? offsets[index1] + index2 - index1
+                    : offsets[index2] + index1 - index2;
+        }
+
+        private float decode(int position) {
+            switch (encoding) {
+                case HALF:
+                    return halfToFloat(shorts[position]);
+                case FIXED16:
+                    return (float) ((shorts[position] & 0xffff) * scale);
+                default:
+                    return (float) ((bytes[position] & 0xff) * scale);
+            }
+        }
+
+        private void encode(int position, float distance) {
+            switch (encoding) {
+                case HALF:
+                    shorts[position] = floatToHalf(distance);
+                    break;
+                case FIXED16:
+                    shorts[position] = (short) Math.min(0xffff, Math.round(distance / scale));
+                    break;
+                default:
+                    bytes[position] = (byte) Math.min(0xff, Math.round(distance / scale));
+                    break;
+            }
+        }
+
+        // Rounds a non-negative float to the nearest half-precision float, ties to even
+        static short floatToHalf(float value) {
+            int bits = Float.floatToIntBits(value) & 0x7fffffff;
+            if (bits >= 0x47800000) { // 65536 or more, infinity or NaN
+                return (short) (bits > 0x7f800000 ? 0x7e00 : 0x7c00);
+            }
+            if (bits >= 0x38800000) { // normal, possibly rounding up to infinity
+                return (short) ((bits - 0x38000000 + 0xfff + ((bits >>> 13) & 1)) >>> 13);
+            }
+            if (bits < 0x33000000) { // below half of the smallest subnormal
+                return 0;
+            }
+            int shift = 126 - (bits >>> 23);
+            int mantissa = (bits & 0x7fffff) | 0x800000;
+            int half = mantissa >>> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int midpoint = 1 << (shift - 1);
+            if (rest > midpoint || rest == midpoint && (half & 1) != 0) {
+                half++;
+            }
+            return (short) half;
+        }
+
+        static float halfToFloat(short half) {
+            int bits = half & 0x7fff;
+            if (bits >= 0x7c00) { // infinity or NaN
+                return bits == 0x7c00 ? Float.POSITIVE_INFINITY : Float.NaN;
+            }
+            if (bits < 0x400) { // subnormal
+                return bits * 0x1p-24f;
+            }
+            return Float.intBitsToFloat((bits << 13) + 0x38000000);
+        }
+    }
+
+    private static final class Lazy extends DistanceMatrix {
+        // Dense column-major coordinates, one dimension per row
+        private final Matrix columns;
+        // Direct-mapped cache of rows, each one in the slot given by its index modulo the cache size
+        private final AtomicReferenceArray<CachedRow> cache;
+
+        Lazy(IdIndex clusters, Matrix columns, int cacheSize) {
+            super(clusters);
+            this.columns = columns;
+            this.cache = new AtomicReferenceArray<>(cacheSize);
+        }
+
+        @Override
+        public float getDistance(int index1, int index2) {
+            if (index1 == index2) {
+                return 0f;
+            }
+            CachedRow cached = cache.get(index1 % cache.length());
+            if (cached != null && cached.index == index1) {
+                return cached.distances[index2];
+            }
+            cached = cache.get(index2 % cache.length());
+            if (cached != null && cached.index == index2) {
+                return cached.distances[index1];
+            }
+            return VectorMath.norm2(columns, Math.min(index1, index2), Math.max(index1, index2));
+        }
+
+        @Override
+        public float[] getRow(int index, float[] row) {
+            int slot = index % cache.length();
+            CachedRow cached = cache.get(slot);
+            if (cached != null && cached.index == index) {
+                System.arraycopy(cached.distances, 0, row, 0, n);
+            } else {
+                // Each distance is computed from the point of the lower index, like the stored layouts
+                float[] point = columns.getCol(index, new float[columns.getRows()]);
+                double[] sums = new double[n];
+                float[] after = new float[n - index - 1];
+                VectorMath.norm2(point, false, columns, 0, index, sums, row);
+                VectorMath.norm2(point, true, columns, index + 1, n, sums, after);
+                System.arraycopy(after, 0, row, index + 1, after.length);
+                row[index] = 0f;
+                cache.set(slot, new CachedRow(index, Arrays.copyOf(row, n)));
+            }
+            return row;
+        }
+
+        @Override
+        public Layout getLayout() {
+            return Layout.LAZY;
+        }
+
+        @Override
+        void set(int index, int from, float[] distances, int offset, int length) {
+            throw new UnsupportedOperationException("Distances are computed on demand");
+        }
+    }
+
+    private static final class CachedRow {
+        private final int index;
+        private final float[] distances;
+
+        CachedRow(int index, float[] distances) {
+            this.index = index;
+            this.distances = distances;
+        }
+    }
+
+    private static final class Tiling {
+        private final DistanceMatrix matrix;
+        // Dense column-major coordinates, one dimension per row
+        private final Matrix columns;
+        private final int side;
+        private final int[] tiles;
+
+        Tiling(DistanceMatrix matrix, Matrix columns, int side, int[] tiles) {
+            this.matrix = matrix;
+            this.columns = columns;
+            this.side = side;
+            this.tiles = tiles;
+        }
+
+        // Computes the tiles [from, to), one row at a time
+        void compute(int from, int to) {
+            int n = matrix.n;
+            float[] block = new float[TILE_SIZE];
+            double[] sums = new double[TILE_SIZE];
+            float[] point = new float[columns.getRows()];
+            int row;
+            int rowEnd;
+            int col;
+            int colEnd;
+            int start;
+            for (int t = from; t < to; t++) {
+                row = tiles[t] / side * TILE_SIZE;
+                col = tiles[t] % side * TILE_SIZE;
+                rowEnd = Math.min(n, row + TILE_SIZE);
+                colEnd = Math.min(n, col + TILE_SIZE);
+                for (int i = row; i < rowEnd; i++) {
+                    start = Math.max(col, i + 1);
+                    if (start >= colEnd) {
+                        continue;
+                    }
+                    VectorMath.norm2(columns.getCol(i, point), true, columns, start, colEnd, sums, block);
+                    matrix.set(i, start, block, 0, colEnd - start);
+                }
+                matrix.completeTile(row, rowEnd, col, colEnd);
+            }
+        }
+    }
+
+    private static class TileTask extends RecursiveAction {
+        private final Tiling tiling;
+        private final int from;
+        private final int to;
+
+        TileTask(Tiling tiling, int from, int to) {
+            this.tiling = tiling;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                tiling.compute(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(tiling, from, mid),
+                          new TileTask(tiling, mid, to));
+            }
+        }
+    }
+
+    // Position of the diagonal element of each row in a packed upper triangle
+    private static int[] triangularOffsets(int n) {
+        int[] offsets = new int[n];
+        for (int i = 1; i < n; i++) {
+            offsets[i] = offsets[i - 1] + n - i + 1;
+        }
+        return offsets;
+    }
 
 }
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy.model;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongComparators;
+import it.unimi.dsi.fastutil.longs.LongHeapPriorityQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An approximate nearest-neighbour index over a set of points, such as all clusters of the full
+ * taste-space, as a hierarchical navigable small world (HNSW) graph. Queries are answered for any
+ * weighting of the dimensions, i.e. with the distance {@code sqrt(Σ w[d]·(x[d] - y[d])²)}. The weights
+ * of a user's subspace, see {@link se.motility.linkboy.TasteOperations#weights}, give the distances of
+ * that subspace without computing its distance matrix.
+ * <p>
+ * Each point is linked to its nearest points in a number of layers. A point is present in layer
+ * {@code l} with probability {@code m^-l}, so that the upper layers are sparse and link points far
+ * apart. A query walks greedily down from the single point of the top layer, and then searches the
+ * bottom layer, keeping the {@code ef} nearest points found so far. Larger values of {@code ef} find
+ * more of the true nearest points at the cost of more distances computed per query.
+ * <p>
+ * The graph is built using the unweighted distances. It is still navigable for other weightings, but
+ * more so for weightings that spread out over many dimensions. The levels of the points are drawn
+ * from a fixed seed, so that the same points always give the same graph.
+ *
+ * @author M Tegling
+ */
+public class HnswIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HnswIndex.class);
+    private static final int DEFAULT_M = 16;
+    private static final int DEFAULT_EF_CONSTRUCTION = 100;
+    private static final long SEED = 42L;
+
+    private final int n;
+    private final int dims;
+    private final int m;
+    // Points, row-major
+    private final float[] points;
+    // Per point: number of links followed by the links in the bottom layer, at most 2m of them
+    private final int[] bottom;
+    // Per point: number of links followed by the links in each upper layer, at most m per layer
+    private final int[][] upper;
+    private int entry = -1;
+    private int topLevel = -1;
+
+    public HnswIndex(Matrix points) {
+        this(points, DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+    }
+
+    /**
+     * @param points {@code nxd} matrix of points, indexed by row
+     * @param m number of links per point and layer, twice as many in the bottom layer
+     * @param efConstruction number of candidates considered when linking each point
+     */
+    public HnswIndex(Matrix points, int m, int efConstruction) {
+        if (m < 2 || efConstruction < 1) {
+            throw new IllegalArgumentException("Invalid HNSW parameters m=" + m + ", efConstruction=" + efConstruction);
+        }
+        long startTime = System.currentTimeMillis();
+        this.n = points.getRows();
+        this.dims = points.getCols();
+        this.m = m;
+        Matrix source = points.compact();
+        this.points = Arrays.copyOfRange(source.getData(), source.getOffset(), source.getOffset() + n * dims);
+        this.bottom = new int[n * (2 * m + 1)];
+        this.upper = new int[n][];
+
+        Random random = new Random(SEED);
+        double levelFactor = 1 / Math.log(m);
+        int level;
+        for (int i = 0; i < n; i++) {
+            level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+            upper[i] = new int[level * (m + 1)];
+            insert(i, level, efConstruction);
+        }
+        LOG.info("Built HNSW index of {} points with {} layers in {} ms", n, topLevel + 1,
+                System.currentTimeMillis() - startTime);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Finds points near the query point, most of which are among the nearest ones.
+     * @param query query point
+     * @param weights weight of each dimension, or {@code null} for the unweighted distance
+     * @param k maximum number of points to find
+     * @param ef number of candidates to keep during the search, at least {@code k}. Larger values
+     *           trade speed for recall
+     * @return indexes of the points found, ordered by increasing distance and then by increasing index
+     */
+    public int[] search(float[] query, float[] weights, int k, int ef) {
+        if (k <= 0 || n == 0) {
+            return new int[0];
+        }
+        Distance distance = weighted(query, weights);
+        int nearest = entry;
+        for (int level = topLevel; level > 0; level--) {
+            nearest = (int) searchLayer(distance, nearest, 1, level)[0];
+        }
+        long[] found = searchLayer(distance, nearest, Math.max(k, ef), 0);
+        int[] result = new int[Math.min(k, found.length)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (int) found[i];
+        }
+        return result;
+    }
+
+    /**
+     * Finds the nearest points by computing the distance to all of them, as a reference for
+     * {@link #search(float[], float[], int, int)}.
+     * @param query query point
+     * @param weights weight of each dimension, or {@code null} for the unweighted distance
+     * @param k maximum number of points to find
+     * @return indexes of the nearest points, ordered by increasing distance and then by increasing index
+     */
+    public int[] exact(float[] query, float[] weights, int k) {
+        if (k <= 0 || n == 0) {
+            return new int[0];
+        }
+        Distance distance = weighted(query, weights);
+        LongHeapPriorityQueue heap = new LongHeapPriorityQueue(k, LongComparators.OPPOSITE_COMPARATOR);
+        long e;
+        for (int i = 0; i < n; i++) {
+            e = pack(distance.to(i), i);
+            if (heap.size() < k) {
+                heap.enqueue(e);
+            } else if (e < heap.firstLong()) {
+                heap.dequeueLong();
+                heap.enqueue(e);
+            }
+        }
+        int[] result = new int[heap.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = (int) heap.dequeueLong();
+        }
+        return result;
+    }
+
+    /**
+     * @param query query point
+     * @param weights weight of each dimension, or {@code null} for the unweighted distance
+     * @param index point index
+     * @return distance from the query point to the point
+     */
+    public float distance(float[] query, float[] weights, int index) {
+        return (float) Math.sqrt(weighted(query, weights).to(index));
+    }
+
+    private void insert(int i, int level, int efConstruction) {
+        if (entry < 0) {
+            entry = i;
+            topLevel = level;
+            return;
+        }
+        Distance distance = j -> squared(i, j);
+        int nearest = entry;
+        for (int l = topLevel; l > level; l--) {
+            nearest = (int) searchLayer(distance, nearest, 1, l)[0];
+        }
+        long[] found;
+        int[] selected;
+        for (int l = Math.min(level, topLevel); l >= 0; l--) {
+            found = searchLayer(distance, nearest, efConstruction, l);
+            selected = select(found, m);
+            setLinks(i, l, selected);
+            for (int j : selected) {
+                link(j, i, l);
+            }
+            nearest = (int) found[0];
+        }
+        if (level > topLevel) {
+            entry = i;
+            topLevel = level;
+        }
+    }
+
+    // Adds a link from one point to another, pruning the links of the point if there are too many
+    private void link(int from, int to, int level) {
+        int[] links = links(from, level);
+        int base = base(from, level);
+        int count = links[base];
+        if (count < capacity(level)) {
+            links[base + 1 + count] = to;
+            links[base] = count + 1;
+            return;
+        }
+        long[] candidates = new long[count + 1];
+        for (int c = 0; c < count; c++) {
+            candidates[c] = pack(squared(from, links[base + 1 + c]), links[base + 1 + c]);
+        }
+        candidates[count] = pack(squared(from, to), to);
+        Arrays.sort(candidates);
+        setLinks(from, level, select(candidates, capacity(level)));
+    }
+
+    // Picks up to 'max' of the candidates, sorted by increasing distance to a point, skipping those
+    // nearer one already picked than the point itself. This keeps links in all directions rather than
+    // only to the nearest points, which may all lie on one side
+    private int[] select(long[] candidates, int max) {
+        IntArrayList selected = new IntArrayList(max);
+        int candidate;
+        float distance;
+        boolean keep;
+        for (long c : candidates) {
+            if (selected.size() == max) {
+                break;
+            }
+            candidate = (int) c;
+            distance = distanceOf(c);
+            keep = true;
+            for (int s = 0; s < selected.size() && keep; s++) {
+                keep = squared(candidate, selected.getInt(s)) >= distance;
+            }
+            if (keep) {
+                selected.add(candidate);
+            }
+        }
+        return selected.toIntArray();
+    }
+
+    // The 'ef' points nearest the query found by a best-first search of a layer, sorted by increasing
+    // distance, packed like in NeighbourGraph
+    private long[] searchLayer(Distance distance, int start, int ef, int level) {
+        boolean[] visited = new boolean[n];
+        LongHeapPriorityQueue candidates = new LongHeapPriorityQueue(ef);
+        LongHeapPriorityQueue nearest = new LongHeapPriorityQueue(ef, LongComparators.OPPOSITE_COMPARATOR);
+        long first = pack(distance.to(start), start);
+        visited[start] = true;
+        candidates.enqueue(first);
+        nearest.enqueue(first);
+        long candidate;
+        long next;
+        int[] links;
+        int base;
+        int neighbour;
+        while (!candidates.isEmpty()) {
+            candidate = candidates.dequeueLong();
+            if (nearest.size() == ef && candidate > nearest.firstLong()) {
+                break; // all remaining candidates are farther than the points found
+            }
+            links = links((int) candidate, level);
+            base = base((int) candidate, level);
+            for (int c = 1; c <= links[base]; c++) {
+                neighbour = links[base + c];
+                if (!visited[neighbour]) {
+                    visited[neighbour] = true;
+                    next = pack(distance.to(neighbour), neighbour);
+                    if (nearest.size() < ef || next < nearest.firstLong()) {
+                        candidates.enqueue(next);
+                        nearest.enqueue(next);
+                        if (nearest.size() > ef) {
+                            nearest.dequeueLong();
+                        }
+                    }
+                }
+            }
+        }
+        long[] result = new long[nearest.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = nearest.dequeueLong();
+        }
+        return result;
+    }
+
+    private void setLinks(int i, int level, int[] selected) {
+        int[] links = links(i, level);
+        int base = base(i, level);
+        links[base] = selected.length;
+        System.arraycopy(selected, 0, links, base + 1, selected.length);
+    }
+
+    private int[] links(int i, int level) {
+        return level == 0 ? bottom : upper[i];
+    }
+
+    private int base(int i, int level) {
+        return level == 0 ? i * (2 * m + 1) : (level - 1) * (m + 1);
+    }
+
+    private int capacity(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    private float squared(int i, int j) {
+        float result = 0;
+        float diff;
+        int a = i * dims;
+        int b = j * dims;
+        for (int d = 0; d < dims; d++) {
+            diff = points[a + d] - points[b + d];
+            result += diff * diff;
+        }
+        return result;
+    }
+
+    // Squared weighted distance to the query point, only reading the dimensions of non-zero weight
+    private Distance weighted(float[] query, float[] weights) {
+        int[] active = new int[dims];
+        float[] w = new float[dims];
+        int count = 0;
+        for (int d = 0; d < dims; d++) {
+            if (weights == null || weights[d] != 0f) {
+                active[count] = d;
+                w[count++] = weights == null ? 1f : weights[d];
+            }
+        }
+        int size = count;
+        return j -> {
+            float result = 0;
+            float diff;
+            int offset = j * dims;
+            int d;
+            for (int c = 0; c < size; c++) {
+                d = active[c];
+                diff = query[d] - points[offset + d];
+                result += w[c] * diff * diff;
+            }
+            return result;
+        };
+    }
+
+    // Distances are non-negative, so their bit patterns sort just like the values themselves.
+    // Packing the index into the lower bits breaks ties in favour of the lowest index.
+    private static long pack(float distance, int index) {
+        return ((long) Float.floatToIntBits(distance) << 32) | index;
+    }
+
+    private static float distanceOf(long entry) {
+        return Float.intBitsToFloat((int) (entry >>> 32));
+    }
+
+    private interface Distance {
+        // Squared distance to point j
+        float to(int j);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy.model;
+
+import java.util.Arrays;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+/**
+ * Maps IDs, such as cluster or movie IDs, to the consecutive indexes of their position in an array
+ * and back. Small non-negative IDs are looked up by direct addressing in an array indexed by the ID,
+ * which avoids hashing in hot loops. Only if an ID is negative or larger than {@value #MAX_DENSE_ID}
+ * are the IDs looked up in a hash map instead.
+ * <p>
+ * Instances are immutable, and shared by everything indexed in the same order, such as a taste-space,
+ * its subspaces and their distance matrices.
+ *
+ * @author M Tegling
+ */
+public final class IdIndex {
+
+    /**
+     * Index of an unknown ID.
+     */
+    public static final int MISSING = -1;
+
+    // Largest ID to address directly, which bounds the lookup table to 16 MB
+    private static final int MAX_DENSE_ID = (1 << 22) - 1;
+
+    private final int[] ids;
+    // Index of each ID, or MISSING, if all IDs are directly addressable. Otherwise null
+    private final int[] dense;
+    private final Int2IntMap sparse;
+
+    private IdIndex(int[] ids, int[] dense, Int2IntMap sparse) {
+        this.ids = ids;
+        this.dense = dense;
+        this.sparse = sparse;
+    }
+
+    /**
+     * Indexes the IDs by their position. If an ID occurs more than once, its last position is used.
+     * @param ids IDs in index order, which must not be modified afterwards
+     * @return index of the IDs
+     */
+    public static IdIndex of(int[] ids) {
+        int max = -1;
+        int min = 0;
+        for (int id : ids) {
+            max = Math.max(max, id);
+            min = Math.min(min, id);
+        }
+        if (min >= 0 && max <= MAX_DENSE_ID) {
+            int[] dense = new int[max + 1];
+            Arrays.fill(dense, MISSING);
+            for (int i = 0; i < ids.length; i++) {
+                dense[ids[i]] = i;
+            }
+            return new IdIndex(ids, dense, null);
+        }
+        Int2IntMap sparse = new Int2IntOpenHashMap(ids.length);
+        sparse.defaultReturnValue(MISSING);
+        for (int i = 0; i < ids.length; i++) {
+            sparse.put(ids[i], i);
+        }
+        return new IdIndex(ids, null, sparse);
+    }
+
+    /**
+     * @param id ID to look up
+     * @return index of the ID, or {@link #MISSING} if unknown
+     */
+    public int getIndex(int id) {
+        if (dense != null) {
+            return id >= 0 && id < dense.length ? dense[id] : MISSING;
+        }
+        return sparse.get(id);
+    }
+
+    public boolean contains(int id) {
+        return getIndex(id) != MISSING;
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @return IDs in index order, which must not be modified
+     */
+    public int[] getIds() {
+        return ids;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+}
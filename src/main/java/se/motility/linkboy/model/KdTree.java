@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy.model;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongComparators;
+import it.unimi.dsi.fastutil.longs.LongHeapPriorityQueue;
+import se.motility.linkboy.VectorMath;
+
+/**
+ * A k-d tree over a set of points, such as the clusters of a subspace or the clusters of a user's
+ * rated movies, for nearest-neighbour and radius queries which only visit the part of the space near
+ * the query point. Each query takes a predicate to filter the points by their index, such as by the
+ * rating of a movie.
+ * <p>
+ * Each node splits its points at the median of the dimension in which they are spread out the most,
+ * and keeps their bounding box. A query skips a node if the distance from the query point to its box
+ * rules out all of its points. The distances sum the squared differences of the coordinates, and the
+ * bounds are computed in the same order of dimensions, so that a point is never skipped because of
+ * rounding.
+ * <p>
+ * Besides the usual nearest and radius queries, {@link #next(float[], int, float, IntPredicate)} finds
+ * the points closer than a radius in order of their index. This allows replacing a scan over all points
+ * which only acts on those closer than a shrinking limit, such as a scan over the distances of a
+ * {@link DistanceMatrix}. Those are computed like {@link VectorMath#norm2(float[], float[])}, which may
+ * differ from the distances of the tree by rounding, so the radius is widened by a bound on the
+ * difference. The scan then acts on exactly the same points, in the same order, but may visit a few
+ * points just outside the radius.
+ *
+ * @author M Tegling
+ */
+public class KdTree {
+
+    // Maximum number of points in a leaf
+    private static final int LEAF_SIZE = 8;
+    // Relative error allowed for when widening the radius of next(...), far above that of either formula
+    private static final double TOLERANCE = 0x1p-16;
+
+    private final int dims;
+    // Points in tree order, row-major, along with the index of each one
+    private final float[] points;
+    private final int[] indexes;
+    private final int[] positions;
+    // Per node: range of points, children (-1 for leaves), smallest and largest point index, and box
+    private final int[] start;
+    private final int[] end;
+    private final int[] left;
+    private final int[] right;
+    private final int[] minIndex;
+    private final int[] maxIndex;
+    private final float[] lower;
+    private final float[] upper;
+    // Largest absolute coordinate in each dimension, which bounds the rounding error of a distance
+    private final float[] magnitudes;
+    private int nodes;
+
+    /**
+     * @param points {@code nxd} matrix of points, indexed by row
+     */
+    public KdTree(Matrix points) {
+        int n = points.getRows();
+        this.dims = points.getCols();
+        this.points = new float[n * dims];
+        this.indexes = new int[n];
+        for (int i = 0; i < n; i++) {
+            indexes[i] = i;
+        }
+        int maxNodes = countNodes(n);
+        this.start = new int[maxNodes];
+        this.end = new int[maxNodes];
+        this.left = new int[maxNodes];
+        this.right = new int[maxNodes];
+        this.minIndex = new int[maxNodes];
+        this.maxIndex = new int[maxNodes];
+        this.lower = new float[maxNodes * dims];
+        this.upper = new float[maxNodes * dims];
+        Matrix source = points.compact();
+        build(source.getData(), source.getOffset(), 0, n);
+        this.positions = new int[n];
+        for (int p = 0; p < n; p++) {
+            System.arraycopy(source.getData(), source.getOffset() + indexes[p] * dims, this.points, p * dims, dims);
+            positions[indexes[p]] = p;
+        }
+        this.magnitudes = new float[dims];
+        for (int i = 0; i < this.points.length; i++) {
+            magnitudes[i % dims] = Math.max(magnitudes[i % dims], Math.abs(this.points[i]));
+        }
+    }
+
+    public int size() {
+        return indexes.length;
+    }
+
+    /**
+     * @param query query point
+     * @param index point index
+     * @return distance from the query point to the point
+     */
+    public float distance(float[] query, int index) {
+        return distanceAt(query, positions[index]);
+    }
+
+    /**
+     * Finds the points nearest the query point.
+     * @param query query point
+     * @param k maximum number of points to find
+     * @param filter points to consider, or {@code null} for all of them
+     * @return indexes of the nearest points, ordered by increasing distance and then by increasing index
+     */
+    public int[] nearest(float[] query, int k, IntPredicate filter) {
+        if (k <= 0 || indexes.length == 0) {
+            return new int[0];
+        }
+        // Max-heap of the nearest points found so far, packed like in NeighbourGraph
+        LongHeapPriorityQueue heap = new LongHeapPriorityQueue(k, LongComparators.OPPOSITE_COMPARATOR);
+        nearest(0, query, k, filter, heap);
+        int[] result = new int[heap.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = (int) heap.dequeueLong();
+        }
+        return result;
+    }
+
+    /**
+     * Finds all points within a radius of the query point.
+     * @param query query point
+     * @param radius inclusive upper limit on the distance
+     * @param filter points to consider, or {@code null} for all of them
+     * @return indexes of the points, in increasing order
+     */
+    public int[] withinRadius(float[] query, float radius, IntPredicate filter) {
+        IntArrayList result = new IntArrayList();
+        if (indexes.length > 0) {
+            withinRadius(0, query, radius, filter, result);
+        }
+        int[] found = result.toIntArray();
+        Arrays.sort(found);
+        return found;
+    }
+
+    /**
+     * Finds the point with the smallest index of at least {@code from} which may be closer than
+     * {@code radius} to the query point, by the distances of either this tree or
+     * {@link VectorMath#norm2(float[], float[])}. Repeated calls visit all points a scan over all
+     * points in order of their index would act on if it skips those at least {@code radius} away,
+     * even if the radius shrinks between calls.
+     * @param query query point
+     * @param from smallest index to consider
+     * @param radius exclusive upper limit on the distance, which is widened by the rounding error
+     * @param filter points to consider, or {@code null} for all of them
+     * @return index of the point, or -1 if there is none
+     */
+    public int next(float[] query, int from, float radius, IntPredicate filter) {
+        if (indexes.length == 0) {
+            return -1;
+        }
+        int found = next(0, query, from, widen(query, radius), filter, Integer.MAX_VALUE);
+        return found == Integer.MAX_VALUE ? -1 : found;
+    }
+
+    private void nearest(int node, float[] query, int k, IntPredicate filter, LongHeapPriorityQueue heap) {
+        if (heap.size() == k && bound(node, query) > distanceOf(heap.firstLong())) {
+            return;
+        }
+        if (left[node] < 0) {
+            long entry;
+            for (int p = start[node]; p < end[node]; p++) {
+                if (filter == null || filter.test(indexes[p])) {
+                    entry = pack(distanceAt(query, p), indexes[p]);
+                    if (heap.size() < k) {
+                        heap.enqueue(entry);
+                    } else if (entry < heap.firstLong()) {
+                        heap.dequeueLong();
+                        heap.enqueue(entry);
+                    }
+                }
+            }
+            return;
+        }
+        // Visit the nearer child first, which tightens the bound for the other one
+        boolean leftFirst = bound(left[node], query) <= bound(right[node], query);
+        nearest(leftFirst ? left[node] : right[node], query, k, filter, heap);
+        nearest(leftFirst ? right[node] : left[node], query, k, filter, heap);
+    }
+
+    private void withinRadius(int node, float[] query, float radius, IntPredicate filter, IntArrayList result) {
+        if (bound(node, query) > radius) {
+            return;
+        }
+        if (left[node] < 0) {
+            for (int p = start[node]; p < end[node]; p++) {
+                if ((filter == null || filter.test(indexes[p])) && distanceAt(query, p) <= radius) {
+                    result.add(indexes[p]);
+                }
+            }
+            return;
+        }
+        withinRadius(left[node], query, radius, filter, result);
+        withinRadius(right[node], query, radius, filter, result);
+    }
+
+    // Smallest index in [from, best) of a point of the node closer than the radius, or 'best' if none
+    private int next(int node, float[] query, int from, float radius, IntPredicate filter, int best) {
+        if (maxIndex[node] < from || minIndex[node] >= best || bound(node, query) >= radius) {
+            return best;
+        }
+        if (left[node] < 0) {
+            int index;
+            for (int p = start[node]; p < end[node]; p++) {
+                index = indexes[p];
+                if (index >= from && index < best && (filter == null || filter.test(index))
+                        && distanceAt(query, p) < radius) {
+                    best = index;
+                }
+            }
+            return best;
+        }
+        // Visit the child holding the smaller indexes first, which tightens the limit for the other one
+        boolean leftFirst = minIndex[left[node]] <= minIndex[right[node]];
+        best = next(leftFirst ? left[node] : right[node], query, from, radius, filter, best);
+        return next(leftFirst ? right[node] : left[node], query, from, radius, filter, best);
+    }
+
+    // Radius beyond which neither formula can find a point closer than the given radius. Both formulas
+    // are accurate to a few units in the last place of the squared distance, or of the squared
+    // coordinates for VectorMath.norm2, which subtracts products of them
+    private float widen(float[] query, float radius) {
+        if (!(radius < Float.POSITIVE_INFINITY)) {
+            return radius;
+        }
+        double scale = 0d;
+        double m;
+        for (int d = 0; d < dims; d++) {
+            m = Math.abs(query[d]) + magnitudes[d];
+            scale += m * m;
+        }
+        double squared = (double) radius * radius * (1d + TOLERANCE) + scale * TOLERANCE;
+        return Math.nextUp((float) Math.sqrt(squared));
+    }
+
+    // Lower bound on the distance from the query point to any point in the box of the node
+    private float bound(int node, float[] query) {
+        float result = 0;
+        float gap;
+        int b = node * dims;
+        for (int d = 0; d < dims; d++) {
+            if (query[d] < lower[b + d]) {
+                gap = lower[b + d] - query[d];
+            } else if (query[d] > upper[b + d]) {
+                gap = query[d] - upper[b + d];
+            } else {
+                continue;
+            }
+            result += gap * gap;
+        }
+        return (float) Math.sqrt(result);
+    }
+
+    private float distanceAt(float[] query, int p) {
+        float result = 0;
+        float diff;
+        int offset = p * dims;
+        for (int d = 0; d < dims; d++) {
+            diff = query[d] - points[offset + d];
+            result += diff * diff;
+        }
+        return (float) Math.sqrt(result);
+    }
+
+    private static int countNodes(int n) {
+        return n <= LEAF_SIZE ? 1 : 1 + countNodes(n >>> 1) + countNodes(n - (n >>> 1));
+    }
+
+    // Builds the node of the points [from, to) of the indexes, reading their coordinates from the source
+    private int build(float[] source, int offset, int from, int to) {
+        int node = nodes++;
+        start[node] = from;
+        end[node] = to;
+        int b = node * dims;
+        Arrays.fill(lower, b, b + dims, Float.POSITIVE_INFINITY);
+        Arrays.fill(upper, b, b + dims, Float.NEGATIVE_INFINITY);
+        int min = Integer.MAX_VALUE;
+        int max = -1;
+        float x;
+        for (int p = from; p < to; p++) {
+            min = Math.min(min, indexes[p]);
+            max = Math.max(max, indexes[p]);
+            for (int d = 0; d < dims; d++) {
+                x = source[offset + indexes[p] * dims + d];
+                lower[b + d] = Math.min(lower[b + d], x);
+                upper[b + d] = Math.max(upper[b + d], x);
+            }
+        }
+        minIndex[node] = min;
+        maxIndex[node] = max;
+        if (to - from <= LEAF_SIZE) {
+            left[node] = -1;
+            right[node] = -1;
+            return node;
+        }
+        int split = 0;
+        for (int d = 1; d < dims; d++) {
+            if (upper[b + d] - lower[b + d] > upper[b + split] - lower[b + split]) {
+                split = d;
+            }
+        }
+        int mid = (from + to) >>> 1;
+        select(source, offset, split, from, to - 1, mid);
+        left[node] = build(source, offset, from, mid);
+        right[node] = build(source, offset, mid, to);
+        return node;
+    }
+
+    // Partially sorts the indexes [lo, hi] by a coordinate, so that the k-th one is in place (quickselect)
+    private void select(float[] source, int offset, int d, int lo, int hi, int k) {
+        while (lo < hi) {
+            float pivot = source[offset + indexes[(lo + hi) >>> 1] * dims + d];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (source[offset + indexes[i] * dims + d] < pivot) {
+                    i++;
+                }
+                while (source[offset + indexes[j] * dims + d] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = indexes[i];
+                    indexes[i++] = indexes[j];
+                    indexes[j--] = tmp;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    // Distances are non-negative, so their bit patterns sort just like the values themselves.
+    // Packing the index into the lower bits breaks ties in favour of the lowest index.
+    private static long pack(float distance, int index) {
+        return ((long) Float.floatToIntBits(distance) << 32) | index;
+    }
+
+    private static float distanceOf(long entry) {
+        return Float.intBitsToFloat((int) (entry >>> 32));
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import it.unimi.dsi.fastutil.doubles.DoubleHeapIndirectPriorityQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shortest distances from a few landmark clusters to all clusters, moving only along the edges of a
+ * {@link NeighbourGraph}. Since these graph distances satisfy the triangle inequality, the difference
+ * between the distances of two clusters to any landmark is a lower bound on the graph distance between
+ * them (the ALT bound).
+ * <p>
+ * Any path whose jumps are all shorter than the radius of the graph moves along its edges. Hence, the
+ * bound applies to such paths, and may be much tighter than the direct distance whenever the jumps are
+ * short enough to force a detour.
+ * <p>
+ * Landmarks are picked by farthest-point traversal in graph distance, starting from the cluster
+ * farthest away from the one with the most neighbours. Clusters which cannot be reached from any landmark get no bounds.
+ *
+ * @author M Tegling
+ */
+public class Landmarks {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Landmarks.class);
+    private static final double INF = Double.POSITIVE_INFINITY;
+
+    private final float radius;
+    private final int[] landmarks;
+    private final double[][] distances;
+
+    /**
+     * @param graph neighbour graph
+     * @param count number of landmarks
+     * @return landmarks with their distances to all clusters
+     */
+    public static Landmarks compute(NeighbourGraph graph, int count) {
+        long startTime = System.currentTimeMillis();
+        int n = graph.getNumClusters();
+        count = Math.min(count, n);
+        int[] landmarks = new int[count];
+        double[][] distances = new double[count][];
+
+        // Start from the cluster farthest away from the one with the most neighbours, which is in the
+        // largest connected part of the graph unless the graph is very sparse
+        int densest = 0;
+        for (int i = 1; i < n; i++) {
+            if (graph.end(i) - graph.start(i) > graph.end(densest) - graph.start(densest)) {
+                densest = i;
+            }
+        }
+        double[] nearest = shortestDistances(graph, densest);
+        int landmark = farthest(nearest);
+        Arrays.fill(nearest, INF);
+        for (int l = 0; l < count; l++) {
+            landmarks[l] = landmark;
+            distances[l] = shortestDistances(graph, landmark);
+            for (int i = 0; i < n; i++) {
+                nearest[i] = Math.min(nearest[i], distances[l][i]);
+            }
+            landmark = farthest(nearest);
+        }
+        LOG.info("Landmarks computed. {} landmarks. Took {} ms", count, System.currentTimeMillis() - startTime);
+        return new Landmarks(graph.getRadius(), landmarks, distances);
+    }
+
+    private Landmarks(float radius, int[] landmarks, double[][] distances) {
+        this.radius = radius;
+        this.landmarks = landmarks;
+        this.distances = distances;
+    }
+
+    /**
+     * @return radius of the underlying graph. The bounds only apply to paths whose jumps are all
+     *         shorter than this
+     */
+    public float getRadius() {
+        return radius;
+    }
+
+    public int getNumLandmarks() {
+        return landmarks.length;
+    }
+
+    /**
+     * @param index1 cluster index
+     * @param index2 cluster index
+     * @return lower bound on the length of any path between the clusters with all jumps shorter than
+     *         the radius. Infinite if there is no such path
+     */
+    public double lowerBound(int index1, int index2) {
+        double bound = 0d;
+        double d1;
+        double d2;
+        for (double[] d : distances) {
+            d1 = d[index1];
+            d2 = d[index2];
+            if (d1 != d2) { // both are infinite if neither can be reached from the landmark
+                bound = Math.max(bound, Math.abs(d1 - d2));
+            }
+        }
+        return bound;
+    }
+
+    // Bytes taken by write(ByteBuffer): radius, number of landmarks and of clusters, and the arrays
+    int byteSize() {
+        int n = landmarks.length > 0 ? distances[0].length : 0;
+        return 12 + 4 * landmarks.length + 8 * landmarks.length * n;
+    }
+
+    // Writes the landmarks at the position of the buffer, which is advanced past them
+    void write(ByteBuffer buffer) {
+        int n = landmarks.length > 0 ? distances[0].length : 0;
+        buffer.putFloat(radius).putInt(landmarks.length).putInt(n);
+        buffer.asIntBuffer().put(landmarks);
+        buffer.position(buffer.position() + 4 * landmarks.length);
+        for (double[] d : distances) {
+            buffer.asDoubleBuffer().put(d);
+            buffer.position(buffer.position() + 8 * n);
+        }
+    }
+
+    // Reads landmarks written by write(ByteBuffer) at the position of the buffer, which is advanced past them
+    static Landmarks read(ByteBuffer buffer) {
+        float radius = buffer.getFloat();
+        int[] landmarks = new int[buffer.getInt()];
+        double[][] distances = new double[landmarks.length][buffer.getInt()];
+        buffer.asIntBuffer().get(landmarks);
+        buffer.position(buffer.position() + 4 * landmarks.length);
+        for (double[] d : distances) {
+            buffer.asDoubleBuffer().get(d);
+            buffer.position(buffer.position() + 8 * d.length);
+        }
+        return new Landmarks(radius, landmarks, distances);
+    }
+
+    // Dijkstra's algorithm, having unreachable clusters at infinite distance
+    private static double[] shortestDistances(NeighbourGraph graph, int source) {
+        int n = graph.getNumClusters();
+        double[] dist = new double[n];
+        Arrays.fill(dist, INF);
+        dist[source] = 0d;
+        DoubleHeapIndirectPriorityQueue queue = new DoubleHeapIndirectPriorityQueue(dist);
+        queue.enqueue(source);
+        int i;
+        int j;
+        double d;
+        while (!queue.isEmpty()) {
+            i = queue.dequeue();
+            for (int p = graph.start(i); p < graph.end(i); p++) {
+                j = graph.neighbour(p);
+                d = dist[i] + graph.distance(p);
+                if (d < dist[j]) {
+                    dist[j] = d;
+                    if (queue.contains(j)) {
+                        queue.changed(j);
+                    } else {
+                        queue.enqueue(j);
+                    }
+                }
+            }
+        }
+        return dist;
+    }
+
+    // The cluster with the largest finite distance, preferring the lowest index. Unreachable clusters
+    // are skipped, as these are typically isolated and would make poor landmarks.
+    private static int farthest(double[] distances) {
+        int farthest = 0;
+        double max = -1d;
+        for (int i = 0; i < distances.length; i++) {
+            if (distances[i] > max && distances[i] < INF) {
+                max = distances[i];
+                farthest = i;
+            }
+        }
+        return farthest;
+    }
+
+}
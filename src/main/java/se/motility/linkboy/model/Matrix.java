@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy.model;
+
+import java.util.Arrays;
+
+/**
+ * A matrix of floats stored in a single flat array. Element {@code (i, j)} is read from position
+ * {@code offset + i·rowStride + j·colStride} of the array, so that a row-major matrix, its transpose,
+ * a single row or a single column are all described by the same array with different strides.
+ * <p>
+ * Views share the array of the matrix they are taken from, and no elements are copied. Besides
+ * strided views, a view may also select arbitrary rows or columns, such as the rows of the clusters
+ * rated by a user or the columns of the dimensions of a subspace.
+ * <p>
+ * A matrix is dense if it is row-major with contiguous rows, see {@link #isDense()}. Kernels reading
+ * many elements in a row, such as those of {@link se.motility.linkboy.VectorMath}, require their input
+ * to be dense, which a view can be turned into by {@link #compact()}.
+ *
+ * @author M Tegling
+ */
+public final class Matrix {
+
+    private final float[] data;
+    private final int offset;
+    private final int rows;
+    private final int cols;
+    private final int rowStride;
+    private final int colStride;
+    // Row and column of the underlying matrix selected by each index of a view, or null if all in order
+    private final int[] rowIndexes;
+    private final int[] colIndexes;
+
+    /**
+     * Creates a dense row-major matrix of zeros.
+     * @param rows number of rows
+     * @param cols number of columns
+     */
+    public Matrix(int rows, int cols) {
+        this(new float[Math.multiplyExact(rows, cols)], 0, rows, cols, cols, 1, null, null);
+    }
+
+    private Matrix(float[] data, int offset, int rows, int cols, int rowStride, int colStride,
+            int[] rowIndexes, int[] colIndexes) {
+        this.data = data;
+        this.offset = offset;
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStride = rowStride;
+        this.colStride = colStride;
+        this.rowIndexes = rowIndexes;
+        this.colIndexes = colIndexes;
+    }
+
+    /**
+     * Wraps an array of row-major elements without copying it.
+     * @param data elements, row by row
+     * @param rows number of rows
+     * @param cols number of columns
+     * @return dense matrix backed by the array
+     */
+    public static Matrix wrap(float[] data, int rows, int cols) {
+        if (data.length != (long) rows * cols) {
+            throw new IllegalArgumentException(
+                    "Array was of length " + data.length + ". Expected " + rows + "x" + cols);
+        }
+        return new Matrix(data, 0, rows, cols, cols, 1, null, null);
+    }
+
+    /**
+     * Creates a dense copy of the provided rows, which must all be of the same length.
+     * @param rows rows of the matrix
+     * @return dense matrix
+     */
+    public static Matrix of(float[][] rows) {
+        int cols = rows.length > 0 ? rows[0].length : 0;
+        Matrix matrix = new Matrix(rows.length, cols);
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i].length != cols) {
+                throw new IllegalArgumentException(
+                        "Row " + i + " was of length " + rows[i].length + ". Expected " + cols);
+            }
+            System.arraycopy(rows[i], 0, matrix.data, i * cols, cols);
+        }
+        return matrix;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public float get(int i, int j) {
+        return data[position(i, j)];
+    }
+
+    public void set(int i, int j, float value) {
+        data[position(i, j)] = value;
+    }
+
+    /**
+     * Copies a row of this matrix.
+     * @param i row index
+     * @param row array of at least {@link #getCols()} elements to copy the row to
+     * @return the provided array
+     */
+    public float[] getRow(int i, float[] row) {
+        if (colIndexes == null && colStride == 1) {
+            System.arraycopy(data, position(i, 0), row, 0, cols);
+        } else {
+            for (int j = 0; j < cols; j++) {
+                row[j] = data[position(i, j)];
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Copies a column of this matrix.
+     * @param j column index
+     * @param col array of at least {@link #getRows()} elements to copy the column to
+     * @return the provided array
+     */
+    public float[] getCol(int j, float[] col) {
+        return transpose().getRow(j, col);
+    }
+
+    /**
+     * @param i row index
+     * @return {@code 1xd} view of a row
+     */
+    public Matrix row(int i) {
+        return new Matrix(data, offset + rowOffset(i), 1, cols, rowStride, colStride, null, colIndexes);
+    }
+
+    /**
+     * @param j column index
+     * @return {@code nx1} view of a column
+     */
+    public Matrix col(int j) {
+        return new Matrix(data, offset + colOffset(j), rows, 1, rowStride, 1, rowIndexes, null);
+    }
+
+    /**
+     * @param indexes rows to select, in the order to select them, possibly more than once
+     * @return view of the selected rows
+     */
+    public Matrix rows(int[] indexes) {
+        return new Matrix(data, offset, indexes.length, cols, rowStride, colStride,
+                select(rowIndexes, indexes, rows), colIndexes);
+    }
+
+    /**
+     * @param from index of the first row
+     * @param to index after the last row
+     * @return view of the rows {@code [from, to)}
+     */
+    public Matrix rows(int from, int to) {
+        if (from < 0 || to > rows || from > to) {
+            throw new IndexOutOfBoundsException("Rows [" + from + ", " + to + ") of " + rows);
+        }
+        return rowIndexes == null
+                ? new Matrix(data, offset + from * rowStride, to - from, cols, rowStride, colStride, null, colIndexes)
+                : new Matrix(data, offset, to - from, cols, rowStride, colStride,
+                             Arrays.copyOfRange(rowIndexes, from, to), colIndexes);
+    }
+
+    /**
+     * @param indexes columns to select, such as the dimensions of a subspace
+     * @return view of the selected columns
+     */
+    public Matrix cols(int[] indexes) {
+        return new Matrix(data, offset, rows, indexes.length, rowStride, colStride,
+                rowIndexes, select(colIndexes, indexes, cols));
+    }
+
+    /**
+     * @return transposed view of this matrix
+     */
+    public Matrix transpose() {
+        return new Matrix(data, offset, cols, rows, colStride, rowStride, colIndexes, rowIndexes);
+    }
+
+    /**
+     * @return whether this matrix is row-major with contiguous rows, see {@link #getData()}
+     */
+    public boolean isDense() {
+        return rowIndexes == null && colIndexes == null && colStride == 1 && (rowStride == cols || rows <= 1);
+    }
+
+    /**
+     * @return this matrix if dense, otherwise a dense copy of it
+     */
+    public Matrix compact() {
+        if (isDense()) {
+            return this;
+        }
+        Matrix copy = new Matrix(rows, cols);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                copy.data[i * cols + j] = data[position(i, j)];
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the array backing this matrix. Element {@code (i, j)} of a dense matrix is found at
+     * position {@code getOffset() + i·getCols() + j}.
+     * @return backing array
+     * @throws IllegalStateException if this matrix is not dense
+     */
+    public float[] getData() {
+        if (!isDense()) {
+            throw new IllegalStateException("Only dense matrices expose their backing array");
+        }
+        return data;
+    }
+
+    /**
+     * @return position of the first element in the array backing this matrix
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    private int position(int i, int j) {
+        return offset + rowOffset(i) + colOffset(j);
+    }
+
+    private int rowOffset(int i) {
+        return (rowIndexes == null ? i : rowIndexes[i]) * rowStride;
+    }
+
+    private int colOffset(int j) {
+        return (colIndexes == null ? j : colIndexes[j]) * colStride;
+    }
+
+    // Composes a selection with the current one, so that a view of a view reads the underlying array
+    private static int[] select(int[] current, int[] indexes, int size) {
+        int[] selected = new int[indexes.length];
+        for (int k = 0; k < indexes.length; k++) {
+            if (indexes[k] < 0 || indexes[k] >= size) {
+                throw new IndexOutOfBoundsException("Index " + indexes[k] + " of " + size);
+            }
+            selected[k] = current == null ? indexes[k] : current[indexes[k]];
+        }
+        return selected;
+    }
+
+}
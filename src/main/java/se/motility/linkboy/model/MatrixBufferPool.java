@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy.model;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A bounded pool of reusable buffers for the distances of short-lived matrices. A matrix computed with
+ * a pool borrows its buffer from the pool, and returns it when the matrix is closed, see
+ * {@link DistanceMatrix#close()}. Once warmed up, computing a matrix of the same size and layout as a
+ * previous one then allocates no new buffer.
+ * <p>
+ * At most {@code capacity} idle buffers are kept. If more matrices are in use at the same time, the
+ * extra buffers are allocated as usual, and dropped when returned to a full pool. All methods are
+ * thread-safe.
+ *
+ * @author M Tegling
+ */
+public class MatrixBufferPool {
+
+    private final int capacity;
+    private final ArrayDeque<float[]> buffers;
+
+    /**
+     * @param capacity maximum number of idle buffers to keep
+     */
+    public MatrixBufferPool(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive but was " + capacity);
+        }
+        this.capacity = capacity;
+        this.buffers = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Borrows a buffer of the given length. Its contents are undefined.
+     * @param length number of elements
+     * @return an idle buffer of exactly this length, or a new one if there is none
+     */
+    public float[] acquire(int length) {
+        synchronized (buffers) {
+            Iterator<float[]> it = buffers.iterator();
+            float[] buffer;
+            while (it.hasNext()) {
+                buffer = it.next();
+                if (buffer.length == length) {
+                    it.remove();
+                    return buffer;
+                }
+            }
+        }
+        return new float[length];
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller afterwards.
+     * @param buffer buffer previously acquired from this pool
+     */
+    public void release(float[] buffer) {
+        synchronized (buffers) {
+            if (buffers.size() == capacity) {
+                buffers.pollLast(); // keep the most recently used buffers, which are most likely to fit
+            }
+            buffers.addFirst(buffer);
+        }
+    }
+
+    /**
+     * @return number of idle buffers
+     */
+    public int size() {
+        synchronized (buffers) {
+            return buffers.size();
+        }
+    }
+
+}
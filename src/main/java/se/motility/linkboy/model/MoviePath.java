@@ -17,13 +17,20 @@ public class MoviePath {
     private final List<List<Movie>> path;
     private final List<Integer> clusterIds;
     private final double distance;
+    private final boolean optimal;
 
     public MoviePath(Movie mov1, Movie mov2, List<List<Movie>> path, List<Integer> clusterIds, double distance) {
+        this(mov1, mov2, path, clusterIds, distance, true);
+    }
+
+    public MoviePath(Movie mov1, Movie mov2, List<List<Movie>> path, List<Integer> clusterIds, double distance,
+            boolean optimal) {
         this.mov1 = mov1;
         this.mov2 = mov2;
         this.path = path;
         this.clusterIds = clusterIds;
         this.distance = distance;
+        this.optimal = optimal;
     }
 
     public Movie getMov1() {
@@ -38,10 +45,22 @@ public class MoviePath {
         return path;
     }
 
+    public List<Integer> getClusterIds() {
+        return clusterIds;
+    }
+
     public double getDistance() {
         return distance;
     }
 
+    /**
+     * @return {@code false} if the search was stopped by its deadline, in which case a shorter path
+     *         may exist
+     */
+    public boolean isOptimal() {
+        return optimal;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder()
@@ -49,6 +68,7 @@ public class MoviePath {
                 .append(clusterIds)
                 .append(", Distance: ")
                 .append(String.format("%.3f",  distance))
+                .append(optimal ? "" : " (possibly suboptimal)")
                 .append("\n");
         for (List<Movie> cluster : path) {
             sb.append("[\n  ");
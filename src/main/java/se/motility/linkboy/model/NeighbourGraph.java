@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The neighbours of each cluster within a fixed radius, sorted by distance, in compressed sparse
+ * row format. The neighbours of cluster {@code i} are found at the positions
+ * {@code [start(i), end(i))}, ordered by increasing distance and then by increasing cluster index.
+ * <p>
+ * This allows scanning the clusters reachable from a cluster in a single jump without reading a
+ * whole row of the distance matrix, stopping at the first neighbour which is too far away.
+ *
+ * @author M Tegling
+ */
+public class NeighbourGraph {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NeighbourGraph.class);
+
+    // Number of rows sampled when estimating the radius for a given degree
+    private static final int SAMPLE_ROWS = 64;
+
+    private final float radius;
+    private final int[] offsets;
+    private final int[] neighbours;
+    private final float[] distances;
+
+    /**
+     * Computes the graph of all pairs of clusters closer than {@code radius} to each other.
+     * @param matrix distance matrix
+     * @param radius exclusive upper limit on the distance between neighbours
+     * @return neighbour graph
+     */
+    public static NeighbourGraph compute(DistanceMatrix matrix, float radius) {
+        long startTime = System.currentTimeMillis();
+        int n = matrix.getNumClusters();
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (matrix.getDistance(i, j) < radius) {
+                    offsets[i + 1]++;
+                    offsets[j + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        // Distances are non-negative, so their bit patterns sort just like the values themselves.
+        // Packing the index into the lower bits breaks ties in favour of the lowest index.
+        long[] entries = new long[offsets[n]];
+        int[] fill = Arrays.copyOf(offsets, n);
+        float d;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if ((d = matrix.getDistance(i, j)) < radius) {
+                    entries[fill[i]++] = pack(d, j);
+                    entries[fill[j]++] = pack(d, i);
+                }
+            }
+        }
+        int[] neighbours = new int[entries.length];
+        float[] distances = new float[entries.length];
+        for (int i = 0; i < n; i++) {
+            Arrays.sort(entries, offsets[i], offsets[i + 1]);
+        }
+        for (int p = 0; p < entries.length; p++) {
+            neighbours[p] = (int) entries[p];
+            distances[p] = Float.intBitsToFloat((int) (entries[p] >>> 32));
+        }
+        LOG.info("Neighbour graph computed. Radius {}, {} edges. Took {} ms", radius, entries.length,
+                System.currentTimeMillis() - startTime);
+        return new NeighbourGraph(radius, offsets, neighbours, distances);
+    }
+
+    /**
+     * Computes a graph where each cluster has about {@code degree} neighbours on average. The radius
+     * is estimated from the distances of a sample of clusters.
+     * @param matrix distance matrix
+     * @param degree average number of neighbours per cluster
+     * @return neighbour graph
+     */
+    public static NeighbourGraph withDegree(DistanceMatrix matrix, int degree) {
+        int n = matrix.getNumClusters();
+        if (n < 2) {
+            return compute(matrix, 0f);
+        }
+        int step = Math.max(1, n / SAMPLE_ROWS);
+        int rows = (n + step - 1) / step;
+        float[] sample = new float[rows * (n - 1)];
+        int s = 0;
+        for (int i = 0; i < n; i += step) {
+            for (int j = 0; j < n; j++) {
+                if (j != i) {
+                    sample[s++] = matrix.getDistance(i, j);
+                }
+            }
+        }
+        Arrays.sort(sample, 0, s);
+        int q = (int) Math.min(s - 1L, (long) s * degree / (n - 1));
+        return compute(matrix, Math.nextUp(sample[q]));
+    }
+
+    private NeighbourGraph(float radius, int[] offsets, int[] neighbours, float[] distances) {
+        this.radius = radius;
+        this.offsets = offsets;
+        this.neighbours = neighbours;
+        this.distances = distances;
+    }
+
+    /**
+     * @return exclusive upper limit on the distance between neighbours. Any two clusters closer than
+     *         this to each other are neighbours
+     */
+    public float getRadius() {
+        return radius;
+    }
+
+    public int getNumClusters() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @param index cluster index
+     * @return position of the nearest neighbour of the cluster
+     */
+    public int start(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * @param index cluster index
+     * @return position after the farthest neighbour of the cluster
+     */
+    public int end(int index) {
+        return offsets[index + 1];
+    }
+
+    /**
+     * @param index cluster index
+     * @param limit distance limit
+     * @return position after the farthest neighbour of the cluster closer than {@code limit}
+     */
+    public int end(int index, double limit) {
+        int low = offsets[index];
+        int high = offsets[index + 1];
+        int mid;
+        while (low < high) {
+            mid = (low + high) >>> 1;
+            if (distances[mid] < limit) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param position position in the graph
+     * @return cluster index of the neighbour at the position
+     */
+    public int neighbour(int position) {
+        return neighbours[position];
+    }
+
+    /**
+     * @param position position in the graph
+     * @return distance to the neighbour at the position
+     */
+    public float distance(int position) {
+        return distances[position];
+    }
+
+    // Bytes taken by write(ByteBuffer): radius, number of clusters, number of edges and the arrays
+    int byteSize() {
+        return 12 + 4 * offsets.length + 8 * neighbours.length;
+    }
+
+    // Writes the graph at the position of the buffer, which is advanced past it
+    void write(ByteBuffer buffer) {
+        buffer.putFloat(radius).putInt(getNumClusters()).putInt(neighbours.length);
+        buffer.asIntBuffer().put(offsets);
+        buffer.position(buffer.position() + 4 * offsets.length);
+        buffer.asIntBuffer().put(neighbours);
+        buffer.position(buffer.position() + 4 * neighbours.length);
+        buffer.asFloatBuffer().put(distances);
+        buffer.position(buffer.position() + 4 * distances.length);
+    }
+
+    // Reads a graph written by write(ByteBuffer) at the position of the buffer, which is advanced past it
+    static NeighbourGraph read(ByteBuffer buffer) {
+        float radius = buffer.getFloat();
+        int[] offsets = new int[buffer.getInt() + 1];
+        int[] neighbours = new int[buffer.getInt()];
+        float[] distances = new float[neighbours.length];
+        buffer.asIntBuffer().get(offsets);
+        buffer.position(buffer.position() + 4 * offsets.length);
+        buffer.asIntBuffer().get(neighbours);
+        buffer.position(buffer.position() + 4 * neighbours.length);
+        buffer.asFloatBuffer().get(distances);
+        buffer.position(buffer.position() + 4 * distances.length);
+        if (offsets[0] != 0 || offsets[offsets.length - 1] != neighbours.length) {
+            throw new IllegalArgumentException("Offsets do not match the " + neighbours.length + " edges");
+        }
+        return new NeighbourGraph(radius, offsets, neighbours, distances);
+    }
+
+    private static long pack(float distance, int index) {
+        return ((long) Float.floatToIntBits(distance) << 32) | index;
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import it.unimi.dsi.fastutil.chars.CharArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * A trie over the words of a set of items, such as the words of movie titles, which finds the best
+ * items with a word starting with a prefix. Items are identified by their rank, i.e. item 0 is the best
+ * one, and each node keeps the best items of all words below it. A lookup therefore only walks down
+ * the letters of the prefix, no matter how many items match it.
+ * <p>
+ * The nodes are numbered breadth-first, so that the children of each node are consecutive and found
+ * through a single array of offsets. The children of a node are sorted by their letter.
+ *
+ * @author M Tegling
+ */
+public class PrefixIndex {
+
+    private final int topK;
+    // Per node: letter leading to it, position of its first child, and position of its first best item
+    private final char[] letters;
+    private final int[] childOffsets;
+    private final int[] topOffsets;
+    private final int[] top;
+
+    /**
+     * @param words words of each item, in order of rank
+     * @param topK number of best items kept per node
+     */
+    public PrefixIndex(String[][] words, int topK) {
+        this.topK = topK;
+        // Items of each word, in increasing order
+        Map<String, IntArrayList> items = new HashMap<>();
+        IntArrayList posting;
+        for (int i = 0; i < words.length; i++) {
+            for (String word : words[i]) {
+                posting = items.computeIfAbsent(word, w -> new IntArrayList());
+                if (posting.isEmpty() || posting.getInt(posting.size() - 1) != i) {
+                    posting.add(i);
+                }
+            }
+        }
+        String[] sorted = items.keySet().toArray(new String[0]);
+        Arrays.sort(sorted);
+
+        // Breadth-first, each node covering the words [from, to) of the sorted words, which share its
+        // first 'depth' letters
+        IntArrayList from = IntArrayList.wrap(new int[] {0});
+        IntArrayList to = IntArrayList.wrap(new int[] {sorted.length});
+        IntArrayList depth = IntArrayList.wrap(new int[] {0});
+        IntArrayList terminal = new IntArrayList(); // word ending at the node, or -1
+        IntArrayList children = new IntArrayList();
+        CharArrayList nodeLetters = CharArrayList.wrap(new char[] {0});
+        int start;
+        int end;
+        int d;
+        for (int node = 0; node < from.size(); node++) {
+            start = from.getInt(node);
+            end = to.getInt(node);
+            d = depth.getInt(node);
+            children.add(from.size());
+            if (start < end && sorted[start].length() == d) {
+                terminal.add(start++);
+            } else {
+                terminal.add(-1);
+            }
+            for (int w = start; w < end; ) {
+                char letter = sorted[w].charAt(d);
+                int first = w;
+                while (w < end && sorted[w].charAt(d) == letter) {
+                    w++;
+                }
+                from.add(first);
+                to.add(w);
+                depth.add(d + 1);
+                nodeLetters.add(letter);
+            }
+        }
+        int nodes = from.size();
+        children.add(nodes);
+        this.letters = nodeLetters.toCharArray();
+        this.childOffsets = children.toIntArray();
+
+        // Bottom-up, as children are numbered after their parents
+        int[][] best = new int[nodes][];
+        IntArrayList candidates = new IntArrayList();
+        for (int node = nodes - 1; node >= 0; node--) {
+            candidates.clear();
+            if (terminal.getInt(node) >= 0) {
+                posting = items.get(sorted[terminal.getInt(node)]);
+                candidates.addElements(0, posting.elements(), 0, Math.min(topK, posting.size()));
+            }
+            for (int c = childOffsets[node]; c < childOffsets[node + 1]; c++) {
+                candidates.addElements(candidates.size(), best[c]);
+            }
+            best[node] = distinct(candidates.toIntArray(), topK);
+        }
+        this.topOffsets = new int[nodes + 1];
+        for (int node = 0; node < nodes; node++) {
+            topOffsets[node + 1] = topOffsets[node] + best[node].length;
+        }
+        this.top = new int[topOffsets[nodes]];
+        for (int node = 0; node < nodes; node++) {
+            System.arraycopy(best[node], 0, top, topOffsets[node], best[node].length);
+        }
+    }
+
+    /**
+     * @param prefix start of a word
+     * @param limit maximum number of items to find, at most the number of best items kept per node
+     * @return best items with a word starting with the prefix, in order of rank
+     */
+    public int[] complete(String prefix, int limit) {
+        if (limit > topK) {
+            throw new IllegalArgumentException("Only the best " + topK + " items are kept but " + limit + " were requested");
+        }
+        int node = 0;
+        for (int i = 0; i < prefix.length() && node >= 0; i++) {
+            node = child(node, prefix.charAt(i));
+        }
+        if (node < 0) {
+            return new int[0];
+        }
+        int start = topOffsets[node];
+        return Arrays.copyOfRange(top, start, start + Math.min(limit, topOffsets[node + 1] - start));
+    }
+
+    // Child of the node reached by the letter, or -1 if none
+    private int child(int node, char letter) {
+        int lo = childOffsets[node];
+        int hi = childOffsets[node + 1] - 1;
+        int mid;
+        while (lo <= hi) {
+            mid = (lo + hi) >>> 1;
+            if (letters[mid] < letter) {
+                lo = mid + 1;
+            } else if (letters[mid] > letter) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // The 'k' smallest distinct items
+    private static int[] distinct(int[] items, int k) {
+        Arrays.sort(items);
+        int size = 0;
+        for (int i = 0; i < items.length && size < k; i++) {
+            if (size == 0 || items[size - 1] != items[i]) {
+                items[size++] = items[i];
+            }
+        }
+        return Arrays.copyOf(items, size);
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The search indexes of a profile which only depend on its ratings: the scaled subspace, the weights of
+ * the corresponding dimensions of the full space, and the neighbour graph and landmarks of its
+ * distances. Computing these takes a large part of the startup of a server, so that they can be written
+ * once and read back, see {@link #write(OutputStream, long)}, like the distances themselves.
+ *
+ * @author M Tegling
+ */
+public class ProfileIndexes {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProfileIndexes.class);
+    // File format: magic number, version, checksum, the subspace column by column, the weights, the graph,
+    // the landmarks and a CRC-32 of everything before it, in little-endian byte order
+    private static final int MAGIC = 0x49504c42; // "LBPI"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int TRAILER_BYTES = 4;
+
+    private final Matrix coordinates;
+    private final float[] weights;
+    private final NeighbourGraph graph;
+    private final Landmarks landmarks;
+
+    /**
+     * @param coordinates coordinates of each cluster in the scaled subspace
+     * @param weights weight of each dimension of the full space
+     * @param graph neighbour graph of the distances in the subspace
+     * @param landmarks landmarks of the graph
+     */
+    public ProfileIndexes(Matrix coordinates, float[] weights, NeighbourGraph graph, Landmarks landmarks) {
+        if (graph.getNumClusters() != coordinates.getRows()) {
+            throw new IllegalArgumentException("Graph has " + graph.getNumClusters() + " clusters. Expected "
+                                               + coordinates.getRows());
+        }
+        this.coordinates = coordinates;
+        this.weights = weights;
+        this.graph = graph;
+        this.landmarks = landmarks;
+    }
+
+    /**
+     * Reads indexes previously written by {@link #write(OutputStream, long)} onto the heap. The subspace
+     * is column-major, like the one computed by {@code TasteOperations.scaleSubspace}.
+     * @param file indexes file
+     * @param checksum checksum of the data the indexes were computed from
+     * @return indexes, or {@code null} if the file is not an indexes file, has another checksum or is
+     *         corrupted
+     * @throws IOException if the file cannot be read
+     */
+    public static ProfileIndexes read(Path file, long checksum) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length < HEADER_BYTES + TRAILER_BYTES) {
+            LOG.warn("Indexes file '{}' is truncated", file);
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            LOG.warn("'{}' is not an indexes file of version {}", file, VERSION);
+            return null;
+        }
+        if (buffer.getLong(8) != checksum) {
+            LOG.info("Indexes file '{}' is stale", file);
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - TRAILER_BYTES);
+        if ((int) crc.getValue() != buffer.getInt(bytes.length - TRAILER_BYTES)) {
+            LOG.warn("Indexes file '{}' is corrupted", file);
+            return null;
+        }
+        buffer.position(HEADER_BYTES).limit(bytes.length - TRAILER_BYTES);
+        try {
+            int rows = buffer.getInt();
+            int cols = buffer.getInt();
+            float[] data = new float[Math.multiplyExact(rows, cols)];
+            buffer.asFloatBuffer().get(data);
+            buffer.position(buffer.position() + 4 * data.length);
+            float[] weights = new float[buffer.getInt()];
+            buffer.asFloatBuffer().get(weights);
+            buffer.position(buffer.position() + 4 * weights.length);
+            Matrix coordinates = Matrix.wrap(data, cols, rows).transpose();
+            ProfileIndexes indexes = new ProfileIndexes(coordinates, weights, NeighbourGraph.read(buffer),
+                    Landmarks.read(buffer));
+            if (buffer.hasRemaining()) {
+                LOG.warn("Indexes file '{}' has {} bytes more than expected", file, buffer.remaining());
+                return null;
+            }
+            return indexes;
+        } catch (BufferUnderflowException | NegativeArraySizeException | IllegalArgumentException
+                 | ArithmeticException e) {
+            LOG.warn("Indexes file '{}' is malformed", file);
+            return null;
+        }
+    }
+
+    /**
+     * Writes these indexes along with a checksum of the data they were computed from, see
+     * {@link #read(Path, long)}. The output is not closed.
+     * @param out stream to write to
+     * @param checksum checksum of the data the indexes were computed from, such as a CRC-32 of its
+     *                 input files, by which a stale file can be detected
+     * @throws IOException if the indexes could not be written
+     */
+    public void write(OutputStream out, long checksum) throws IOException {
+        int rows = coordinates.getRows();
+        int cols = coordinates.getCols();
+        int size = HEADER_BYTES + 8 + 4 * rows * cols + 4 + 4 * weights.length + graph.byteSize()
+                   + landmarks.byteSize();
+        ByteBuffer buffer = ByteBuffer.allocate(size + TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(checksum).putInt(rows).putInt(cols);
+        float[] col = new float[rows];
+        for (int j = 0; j < cols; j++) {
+            buffer.asFloatBuffer().put(coordinates.getCol(j, col));
+            buffer.position(buffer.position() + 4 * rows);
+        }
+        buffer.putInt(weights.length);
+        buffer.asFloatBuffer().put(weights);
+        buffer.position(buffer.position() + 4 * weights.length);
+        graph.write(buffer);
+        landmarks.write(buffer);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, size);
+        buffer.putInt((int) crc.getValue());
+
+        WritableByteChannel channel = Channels.newChannel(out);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * @return {@code nxd} matrix of the coordinates of each cluster in the scaled subspace
+     */
+    public Matrix getCoordinates() {
+        return coordinates;
+    }
+
+    /**
+     * @return weight of each dimension of the full space. Must not be modified
+     */
+    public float[] getWeights() {
+        return weights;
+    }
+
+    public NeighbourGraph getGraph() {
+        return graph;
+    }
+
+    public Landmarks getLandmarks() {
+        return landmarks;
+    }
+
+}
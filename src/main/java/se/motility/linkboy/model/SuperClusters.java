@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2021-2023 Måns Tegling
+ *
+ * Use of this source code is governed by the MIT license that can be found in the LICENSE file.
+ */
+package se.motility.linkboy.model;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A coarse partition of the clusters into super-clusters, each one a ball around one of its members.
+ * The members of super-cluster {@code g} are found at the positions {@code [start(g), end(g))}, in
+ * order of increasing cluster index.
+ * <p>
+ * By the triangle inequality, no member of a super-cluster is closer to a point than the distance to
+ * its centre minus its radius. This allows whole super-clusters to be ruled out by looking at their
+ * centres only.
+ * <p>
+ * The centres are picked by farthest-point traversal, i.e. each new centre is the cluster farthest away
+ * from all centres picked so far, and every cluster belongs to its nearest centre. This only requires
+ * distances, and reads O(n·g) of them for {@code g} super-clusters, so that it is cheap enough to do
+ * for each user subspace.
+ *
+ * @author M Tegling
+ */
+public class SuperClusters {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SuperClusters.class);
+
+    private final int[] centres;
+    private final float[] radii;
+    private final int[] offsets;
+    private final int[] members;
+
+    /**
+     * @param matrix distance matrix
+     * @param groupSize average number of clusters per super-cluster
+     * @return super-clusters
+     */
+    public static SuperClusters compute(DistanceMatrix matrix, int groupSize) {
+        long startTime = System.currentTimeMillis();
+        int n = matrix.getNumClusters();
+        int groups = Math.max(1, Math.min(n, n / Math.max(1, groupSize)));
+
+        // Farthest-point traversal, keeping track of each cluster's nearest centre
+        int[] centres = new int[groups];
+        int[] group = new int[n];
+        float[] nearest = new float[n];
+        Arrays.fill(nearest, Float.POSITIVE_INFINITY);
+        int centre = 0;
+        int farthest;
+        float d;
+        for (int g = 0; g < groups; g++) {
+            centres[g] = centre;
+            farthest = centre;
+            for (int i = 0; i < n; i++) {
+                if ((d = matrix.getDistance(centre, i)) < nearest[i] || i == centre) {
+                    nearest[i] = i == centre ? 0f : d;
+                    group[i] = g;
+                }
+                if (nearest[i] > nearest[farthest]) {
+                    farthest = i;
+                }
+            }
+            centre = farthest;
+        }
+
+        float[] radii = new float[groups];
+        int[] offsets = new int[groups + 1];
+        for (int i = 0; i < n; i++) {
+            radii[group[i]] = Math.max(radii[group[i]], nearest[i]);
+            offsets[group[i] + 1]++;
+        }
+        for (int g = 0; g < groups; g++) {
+            offsets[g + 1] += offsets[g];
+        }
+        int[] members = new int[n];
+        int[] fill = Arrays.copyOf(offsets, groups);
+        for (int i = 0; i < n; i++) {
+            members[fill[group[i]]++] = i;
+        }
+        LOG.info("Super-clusters computed. {} super-clusters. Took {} ms", groups,
+                System.currentTimeMillis() - startTime);
+        return new SuperClusters(centres, radii, offsets, members);
+    }
+
+    private SuperClusters(int[] centres, float[] radii, int[] offsets, int[] members) {
+        this.centres = centres;
+        this.radii = radii;
+        this.offsets = offsets;
+        this.members = members;
+    }
+
+    public int getNumGroups() {
+        return centres.length;
+    }
+
+    /**
+     * @param group super-cluster
+     * @return cluster index of the centre of the super-cluster
+     */
+    public int centre(int group) {
+        return centres[group];
+    }
+
+    /**
+     * @param group super-cluster
+     * @return largest distance from the centre to any member of the super-cluster
+     */
+    public float radius(int group) {
+        return radii[group];
+    }
+
+    /**
+     * @param group super-cluster
+     * @return position of the first member of the super-cluster
+     */
+    public int start(int group) {
+        return offsets[group];
+    }
+
+    /**
+     * @param group super-cluster
+     * @return position after the last member of the super-cluster
+     */
+    public int end(int group) {
+        return offsets[group + 1];
+    }
+
+    /**
+     * @param position position in the partition
+     * @return cluster index of the member at the position
+     */
+    public int member(int position) {
+        return members[position];
+    }
+
+}
@@ -5,39 +5,43 @@
  */
 package se.motility.linkboy.model;
 
-import it.unimi.dsi.fastutil.ints.Int2IntMap;
-import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
-
 /**
  * @author M Tegling
  */
 public class TasteSpace {
 
-    private final int[] indexToId;
-    private final Int2IntMap idToIndex;
-    private final float[][] coordinates;
+    private final IdIndex clusters;
+    private final Matrix coordinates;
     private final int n;
 
-    public TasteSpace(int[] clusterIds, float[][] coordinates) {
-        this.n = clusterIds.length;
-        this.indexToId = clusterIds;
-        this.idToIndex = new Int2IntOpenHashMap(clusterIds.length);
-        for (int i = 0; i < clusterIds.length; i++) {
-            this.idToIndex.put(clusterIds[i], i);
-        }
-        this.coordinates = coordinates;
+    public TasteSpace(int[] clusterIds, Matrix coordinates) {
+        this(IdIndex.of(clusterIds), coordinates);
     }
 
-    public float[] getCoordinate(int index) {
-        return coordinates[index]; // make it return a deep copy?
+    /**
+     * Creates a taste-space indexed like another one, such as a subspace of it.
+     * @param clusters cluster IDs in index order
+     * @param coordinates coordinates of each cluster
+     */
+    public TasteSpace(IdIndex clusters, Matrix coordinates) {
+        this.n = clusters.size();
+        this.clusters = clusters;
+        this.coordinates = coordinates;
     }
 
-    public float[][] getCoordinates() {
+    /**
+     * @return {@code nxd} matrix of the coordinates of each cluster, possibly a view of another matrix
+     */
+    public Matrix getCoordinates() {
         return coordinates;
     }
 
     public int[] getClusterIds() {
-        return indexToId;
+        return clusters.getIds();
+    }
+
+    public IdIndex getClusterIndexes() {
+        return clusters;
     }
 
     public int getNumClusters() {
@@ -45,29 +49,27 @@ public class TasteSpace {
     }
 
     public int getDimensions() {
-        return coordinates[0].length;
+        return coordinates.getCols();
     }
 
     public int getClusterId(int index) {
-        return indexToId[index];
+        return clusters.getId(index);
     }
 
+    /**
+     * @param id cluster ID
+     * @return index of the cluster, or {@link IdIndex#MISSING} if unknown
+     */
     public int getClusterIndex(int id) {
-        return idToIndex.get(id);
+        return clusters.getIndex(id);
     }
 
+    /**
+     * @param dimensions dimensions of the subspace
+     * @return subspace of the provided dimensions, viewing the coordinates of this taste-space
+     */
     public TasteSpace subspace(int[] dimensions) {
-        float[][] subspace = new float[n][dimensions.length];
-        float[] fullRow;
-        float[] subRow;
-        for (int i = 0; i < n; i++) {
-            fullRow = coordinates[i];
-            subRow = subspace[i];
-            for (int j = 0; j < dimensions.length; j++) {
-                subRow[j] = fullRow[dimensions[j]];
-            }
-        }
-        return new TasteSpace(indexToId, subspace);
+        return new TasteSpace(clusters, coordinates.cols(dimensions));
     }
 
 }
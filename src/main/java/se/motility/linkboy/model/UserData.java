@@ -12,17 +12,65 @@ public class UserData {
 
     private final int[] movieIds;
     private final int[] clusterIds;
+    // Index of each cluster in the global taste-space, if known
+    private final int[] clusterIndexes;
     private final float[] ratings;
     private final TasteSpace space;
 
     public UserData(int[] movieIds, int[] clusterIds, float[] ratings, float[][] coordinates) {
+        this(movieIds, clusterIds, null, ratings, Matrix.of(coordinates));
+    }
+
+    public UserData(int[] movieIds, int[] clusterIds, float[] ratings, Matrix coordinates) {
+        this(movieIds, clusterIds, null, ratings, coordinates);
+    }
+
+    /**
+     * Creates user data with the precomputed index of each rated cluster in the global taste-space,
+     * which is also its index in the distance matrices of the taste-space and its subspaces.
+     * @param clusterIndexes index of each cluster, or {@code null} if not known
+     * @param coordinates coordinates of each rated movie, such as a view of the rows of its cluster
+     *                    in the global taste-space
+     */
+    public UserData(int[] movieIds, int[] clusterIds, int[] clusterIndexes, float[] ratings, Matrix coordinates) {
         int n = movieIds.length;
         this.movieIds = validateLength(n, movieIds, "movieIds");
         this.clusterIds = validateLength(n, clusterIds, "clusterIds");
+        this.clusterIndexes = clusterIndexes == null ? null : validateLength(n, clusterIndexes, "clusterIndexes");
         this.ratings = validateLength(n, ratings, "ratings");
         this.space = new TasteSpace(clusterIds, coordinates);
     }
 
+    /**
+     * Returns this user data with the index of each cluster in the provided taste-space, see
+     * {@link #getClusterIndexes()}.
+     * @param globalSpace taste-space to index the clusters in
+     * @return user data with cluster indexes, possibly this one
+     * @throws IllegalArgumentException if a cluster is not in the taste-space
+     */
+    public UserData withClusterIndexes(TasteSpace globalSpace) {
+        if (clusterIndexes != null) {
+            return this;
+        }
+        int[] indexes = new int[clusterIds.length];
+        for (int i = 0; i < clusterIds.length; i++) {
+            indexes[i] = globalSpace.getClusterIndex(clusterIds[i]);
+            if (indexes[i] == IdIndex.MISSING) {
+                throw new IllegalArgumentException("Cluster " + clusterIds[i] + " of movie " + movieIds[i]
+                        + " is not in the taste-space");
+            }
+        }
+        return new UserData(movieIds, clusterIds, indexes, ratings, space);
+    }
+
+    private UserData(int[] movieIds, int[] clusterIds, int[] clusterIndexes, float[] ratings, TasteSpace space) {
+        this.movieIds = movieIds;
+        this.clusterIds = clusterIds;
+        this.clusterIndexes = clusterIndexes;
+        this.ratings = ratings;
+        this.space = space;
+    }
+
     public boolean containsCluster(int clusterId) {
         for (int cId : clusterIds) {
             if (cId == clusterId) {
@@ -40,6 +88,13 @@ public class UserData {
         return clusterIds;
     }
 
+    /**
+     * @return index of each rated cluster in the global taste-space, or {@code null} if not known
+     */
+    public int[] getClusterIndexes() {
+        return clusterIndexes;
+    }
+
     public int getNumPoints() {
         return movieIds.length;
     }
@@ -70,8 +125,9 @@ public class UserData {
         float r;
         int[] mIds;
         int[] cIds;
+        int[] cIdxs;
         float[] rats;
-        float[][] coords;
+        int[] rows;
         for (int i = 1; i < 11; i++) {
             r = i * 0.5f;
             int k = 0;
@@ -82,19 +138,23 @@ public class UserData {
             }
             mIds = new int[k];
             cIds = new int[k];
+            cIdxs = clusterIndexes == null ? null : new int[k];
             rats  = new float[k];
-            coords  = new float[k][space.getDimensions()];
+            rows  = new int[k];
             k = 0;
             for (int j = 0; j < movieIds.length; j++) {
                 if (ratings[j] == r) {
                     mIds[k] = movieIds[j];
                     cIds[k] = clusterIds[j];
+                    if (cIdxs != null) {
+                        cIdxs[k] = clusterIndexes[j];
+                    }
                     rats[k] = ratings[j];
-                    coords[k] = space.getCoordinate(space.getClusterIndex(clusterIds[j]));
+                    rows[k] = j;
                     k++;
                 }
             }
-            datasets[i-1] = new UserData(mIds, cIds, rats, coords);
+            datasets[i-1] = new UserData(mIds, cIds, cIdxs, rats, space.getCoordinates().rows(rows));
         }
         return datasets;
     }
@@ -15,8 +15,18 @@ public class SampleIndexSequence {
     }
 
     public int[] getRandomSequence() {
+        return getRandomSequence(new int[maxIdx - minIdx + 1]);
+    }
+
+    /**
+     * Like {@link #getRandomSequence()}, but shuffles the indices into the provided array instead of
+     * allocating a new one. Gives the same sequences in the same order.
+     *
+     * @param idx array of {@code maxIdx - minIdx + 1} elements to overwrite
+     * @return {@code idx}
+     */
+    public int[] getRandomSequence(int[] idx) {
         int n = maxIdx - minIdx + 1;
-        int[] idx = new int[n];
         for (int i = 0; i < n; i++) {
             idx[i] = i + minIdx;
         }
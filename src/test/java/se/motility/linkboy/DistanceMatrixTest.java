@@ -0,0 +1,311 @@
+package se.motility.linkboy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.motility.linkboy.model.DistanceMatrix;
+import se.motility.linkboy.model.DistanceMatrix.Encoding;
+import se.motility.linkboy.model.DistanceMatrix.Layout;
+import se.motility.linkboy.model.IdIndex;
+import se.motility.linkboy.model.Matrix;
+import se.motility.linkboy.model.MatrixBufferPool;
+
+import static org.junit.Assert.*;
+
+public class DistanceMatrixTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void layoutsAgree() {
+        int n = 257;
+        float[][] coordinates = randomCoordinates(n, 7, 11L);
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = 1000 + 3 * i;
+        }
+        DistanceMatrix triangular = DistanceMatrix.compute(ids, Matrix.of(coordinates), Layout.TRIANGULAR);
+        DistanceMatrix symmetric = DistanceMatrix.compute(ids, Matrix.of(coordinates), Layout.SYMMETRIC);
+        assertEquals(Layout.TRIANGULAR, triangular.getLayout());
+        assertEquals(Layout.SYMMETRIC, symmetric.getLayout());
+        assertEquals(n, triangular.getNumClusters());
+        assertEquals(n, symmetric.getNumClusters());
+
+        float[] row1 = new float[n];
+        float[] row2 = new float[n];
+        for (int i = 0; i < n; i++) {
+            triangular.getRow(i, row1);
+            symmetric.getRow(i, row2);
+            assertEquals(0f, row1[i], 0f);
+            for (int j = 0; j < n; j++) {
+                float expected = VectorMath.norm2(coordinates[Math.min(i, j)], coordinates[Math.max(i, j)]);
+                assertEquals(expected, triangular.getDistance(i, j), 0f);
+                assertEquals(expected, symmetric.getDistance(i, j), 0f);
+                assertEquals(expected, row1[j], 0f);
+                assertEquals(expected, row2[j], 0f);
+            }
+            assertEquals(i, triangular.getClusterIndex(ids[i]));
+        }
+        assertEquals(triangular.getDistance(4, 9), symmetric.getDistanceById(ids[9], ids[4]), 0f);
+    }
+
+    @Test
+    public void clusterIndexes() {
+        float[][] coordinates = randomCoordinates(4, 3, 23L);
+        int[][] idSets = {{7, 0, 3, 12}, {7, -2, 3, 12}, {7, Integer.MAX_VALUE, 3, 12}}; // dense, then sparse
+        for (int[] ids : idSets) {
+            DistanceMatrix matrix = DistanceMatrix.compute(ids, Matrix.of(coordinates));
+            for (int i = 0; i < ids.length; i++) {
+                assertEquals(i, matrix.getClusterIndex(ids[i]));
+                assertEquals(ids[i], matrix.getClusterIndexes().getId(i));
+            }
+            assertEquals(IdIndex.MISSING, matrix.getClusterIndex(5));
+            assertEquals(IdIndex.MISSING, matrix.getClusterIndex(13));
+            assertEquals(IdIndex.MISSING, matrix.getClusterIndex(-1));
+            assertFalse(matrix.getClusterIndexes().contains(1 << 30));
+            assertEquals(matrix.getDistance(2, 0), matrix.getDistanceById(3, 7), 0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownClusterId() {
+        // Index -1 would read the last distance of the previous row of a symmetric matrix
+        DistanceMatrix.compute(new int[] {7, 0, 3, 12}, Matrix.of(randomCoordinates(4, 3, 23L)), Layout.SYMMETRIC)
+                      .getDistanceById(3, 5);
+    }
+
+    @Test
+    public void lazyLayout() {
+        int n = 150;
+        float[][] coordinates = randomCoordinates(n, 7, 13L);
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = 10 * i;
+        }
+        DistanceMatrix stored = DistanceMatrix.compute(ids, Matrix.of(coordinates), Layout.TRIANGULAR);
+        DistanceMatrix lazy = DistanceMatrix.compute(ids, Matrix.of(coordinates), Layout.LAZY);
+        assertEquals(Layout.LAZY, lazy.getLayout());
+        assertEquals(n, lazy.getNumClusters());
+
+        float[] row1 = new float[n];
+        float[] row2 = new float[n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                assertEquals(stored.getDistance(i, j), lazy.getDistance(i, j), 0f);
+            }
+        }
+        // Reading rows twice returns cached rows, which are then also used by getDistance
+        for (int rep = 0; rep < 2; rep++) {
+            for (int i = 0; i < n; i += 7) {
+                assertArrayEquals(stored.getRow(i, row1), lazy.getRow(i, row2), 0f);
+                for (int j = 0; j < n; j++) {
+                    assertEquals(stored.getDistance(i, j), lazy.getDistance(j, i), 0f);
+                }
+            }
+        }
+        assertEquals(stored.getDistanceById(30, 1200), lazy.getDistanceById(30, 1200), 0f);
+    }
+
+    @Test
+    public void quantizedEncodings() {
+        int n = 200;
+        float[][] coordinates = randomCoordinates(n, 7, 17L);
+        coordinates[9] = coordinates[4].clone();
+        coordinates[10] = coordinates[4].clone();
+        coordinates[10][0] += 1e-6f; // tiny distances take the subnormal half-precision path
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+        }
+        float[] row = new float[n];
+        for (Layout layout : new Layout[] {Layout.TRIANGULAR, Layout.SYMMETRIC}) {
+            DistanceMatrix exact = DistanceMatrix.compute(ids, Matrix.of(coordinates), layout);
+            assertSame(exact, exact.quantize(Encoding.FLOAT));
+            float max = 0f;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    max = Math.max(max, exact.getDistance(i, j));
+                }
+            }
+            for (Encoding encoding : new Encoding[] {Encoding.HALF, Encoding.FIXED16, Encoding.FIXED8}) {
+                DistanceMatrix quantized = exact.quantize(encoding);
+                assertEquals(layout, quantized.getLayout());
+                assertEquals(encoding, quantized.getEncoding());
+                for (int i = 0; i < n; i++) {
+                    quantized.getRow(i, row);
+                    for (int j = 0; j < n; j++) {
+                        float expected = exact.getDistance(i, j);
+                        float bound = encoding == Encoding.HALF ? Math.max(expected * 0x1p-11f, 0x1p-25f)
+                                : encoding == Encoding.FIXED16 ? max / 131070f
+                                : max / 510f;
+                        assertEquals(expected, quantized.getDistance(i, j), bound + Math.ulp(expected));
+                        assertEquals(quantized.getDistance(i, j), quantized.getDistance(j, i), 0f);
+                        assertEquals(quantized.getDistance(i, j), row[j], 0f);
+                    }
+                    assertEquals(0f, row[i], 0f);
+                }
+                assertEquals(0f, quantized.getDistance(4, 9), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void pooledBuffers() {
+        int n = 120;
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+        }
+        MatrixBufferPool buffers = null;
+        float[] row1 = new float[n];
+        float[] row2 = new float[n];
+        for (Layout layout : new Layout[] {Layout.TRIANGULAR, Layout.SYMMETRIC}) {
+            buffers = new MatrixBufferPool(1);
+            for (long seed = 1L; seed <= 3L; seed++) {
+                float[][] coordinates = randomCoordinates(n, 7, seed);
+                DistanceMatrix expected = DistanceMatrix.compute(ids, Matrix.of(coordinates), layout);
+                try (DistanceMatrix pooled = DistanceMatrix.compute(ids, Matrix.of(coordinates), layout, null, 0,
+                        buffers)) {
+                    assertEquals(0, buffers.size());
+                    for (int i = 0; i < n; i++) {
+                        assertArrayEquals(expected.getRow(i, row1), pooled.getRow(i, row2), 0f);
+                    }
+                }
+                assertEquals(1, buffers.size());
+            }
+        }
+        float[] buffer = buffers.acquire(n * n);
+        assertEquals(0, buffers.size());
+        buffers.release(buffer);
+        buffers.release(new float[n]); // a full pool keeps the most recently returned buffer
+        assertEquals(1, buffers.size());
+        assertNotSame(buffer, buffers.acquire(n * n));
+    }
+
+    @Test
+    public void writeAndMap() throws IOException {
+        int n = 90;
+        float[][] coordinates = randomCoordinates(n, 7, 19L);
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = 5 * i + 1;
+        }
+        float[] row1 = new float[n];
+        float[] row2 = new float[n];
+        for (Layout layout : Layout.values()) {
+            DistanceMatrix matrix = DistanceMatrix.compute(ids, Matrix.of(coordinates), layout);
+            Path file = folder.newFile().toPath();
+            try (OutputStream out = Files.newOutputStream(file)) {
+                matrix.write(out, 42L);
+            }
+            assertEquals(4L * n * n + 4L * n + 24L, Files.size(file));
+            assertNull(DistanceMatrix.map(file, 43L)); // stale
+            DistanceMatrix mapped = DistanceMatrix.map(file, 42L);
+            assertEquals(Layout.SYMMETRIC, mapped.getLayout());
+            assertEquals(n, mapped.getNumClusters());
+            for (int i = 0; i < n; i++) {
+                assertArrayEquals(matrix.getRow(i, row1), mapped.getRow(i, row2), 0f);
+                assertEquals(i, mapped.getClusterIndex(ids[i]));
+                for (int j = 0; j < n; j++) {
+                    assertEquals(row1[j], mapped.getDistance(i, j), 0f);
+                }
+            }
+            assertEquals(matrix.getDistanceById(6, 446), mapped.getDistanceById(446, 6), 0f);
+        }
+
+        Path truncated = folder.newFile().toPath();
+        try (OutputStream out = Files.newOutputStream(truncated)) {
+            DistanceMatrix.compute(ids, Matrix.of(coordinates)).write(out, 42L);
+        }
+        Files.write(truncated, Arrays.copyOf(Files.readAllBytes(truncated), 1000));
+        assertNull(DistanceMatrix.map(truncated, 42L));
+        assertNull(DistanceMatrix.map(folder.newFile().toPath(), 42L)); // empty
+
+        Path corrupted = folder.newFile().toPath();
+        try (OutputStream out = Files.newOutputStream(corrupted)) {
+            DistanceMatrix.compute(ids, Matrix.of(coordinates)).write(out, 42L);
+        }
+        byte[] bytes = Files.readAllBytes(corrupted);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(corrupted, bytes);
+        assertNull(DistanceMatrix.map(corrupted, 42L));
+    }
+
+    @Test
+    public void parallelIsExact() {
+        int n = 700;
+        float[][] coordinates = randomCoordinates(n, 12, 5L);
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        float[] row1 = new float[n];
+        float[] row2 = new float[n];
+        for (Layout layout : Layout.values()) {
+            DistanceMatrix sequential = DistanceMatrix.compute(ids, Matrix.of(coordinates), layout);
+            DistanceMatrix parallel = DistanceMatrix.compute(ids, Matrix.of(coordinates), layout, pool, 0);
+            for (int i = 0; i < n; i++) {
+                assertArrayEquals(sequential.getRow(i, row1), parallel.getRow(i, row2), 0f);
+            }
+        }
+        pool.shutdown();
+    }
+
+    //@Test
+    public void benchmarkLayouts() {
+        int n = 4000;
+        float[][] coordinates = randomCoordinates(n, 7, 42L);
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+        }
+        for (Layout layout : Layout.values()) {
+            DistanceMatrix matrix = DistanceMatrix.compute(ids, Matrix.of(coordinates), layout);
+            long bytes = layout == Layout.TRIANGULAR ? 4L * n * (n + 1) / 2
+                    : layout == Layout.SYMMETRIC ? 4L * n * n
+                    : 4L * 2 * n * 7 + 4L * 16 * n; // coordinates, their transpose and the row cache
+            float[] row = new float[n];
+            Random random = new Random(7L);
+            double sum = 0d;
+            long bestRows = Long.MAX_VALUE;
+            long bestRandom = Long.MAX_VALUE;
+            for (int rep = 0; rep < 10; rep++) {
+                long t = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    matrix.getRow(i, row);
+                    sum += row[n - 1 - i];
+                }
+                bestRows = Math.min(bestRows, System.nanoTime() - t);
+                t = System.nanoTime();
+                for (int k = 0; k < n * 100; k++) {
+                    sum += matrix.getDistance(random.nextInt(n), random.nextInt(n));
+                }
+                bestRandom = Math.min(bestRandom, System.nanoTime() - t);
+            }
+            System.out.printf("%s: %d kB, all rows %d ms, %d random reads %d ms (%f)%n", layout,
+                    bytes >> 10, bestRows / 1_000_000, n * 100, bestRandom / 1_000_000, sum);
+        }
+    }
+
+    private static float[][] randomCoordinates(int n, int dims, long seed) {
+        Random random = new Random(seed);
+        float[][] coordinates = new float[n][dims];
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < dims; d++) {
+                coordinates[i][d] = (float) random.nextGaussian();
+            }
+        }
+        return coordinates;
+    }
+
+}
@@ -0,0 +1,106 @@
+package se.motility.linkboy;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import se.motility.linkboy.model.HnswIndex;
+import se.motility.linkboy.model.Matrix;
+import se.motility.linkboy.model.TasteSpace;
+import se.motility.linkboy.model.UserData;
+
+import static org.junit.Assert.*;
+import static se.motility.linkboy.TestUtil.*;
+
+public class HnswIndexTest {
+
+    private static final int K = 10;
+
+    @Test
+    public void smallSetIsExact() {
+        Matrix points = Matrix.of(new float[][] {{0f, 0f, 9f}, {3f, 4f, 9f}, {1f, 1f, 0f}, {1f, 1f, 0f}});
+        HnswIndex index = new HnswIndex(points);
+        assertEquals(4, index.size());
+        float[] query = {0f, 0f, 9f};
+        assertArrayEquals(new int[] {0, 1, 2, 3}, index.search(query, null, 5, 5));
+        assertArrayEquals(index.exact(query, null, 5), index.search(query, null, 5, 5));
+
+        // Ignoring the last dimension, the last two points are nearer
+        float[] weights = {1f, 1f, 0f};
+        assertArrayEquals(new int[] {0, 2, 3}, index.search(query, weights, 3, 5));
+        assertEquals(5f, index.distance(query, weights, 1), 0f);
+        assertEquals(0, new HnswIndex(new Matrix(0, 3)).search(query, null, 3, 5).length);
+    }
+
+    @Test
+    public void recall() throws Exception {
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        TasteSpace tasteSpace = DataLoader.readTasteSpace(() -> open("tastespace.dat.gz", true));
+        UserData userData = DataLoader.readUserDataFull(() -> open("uXXX.csv.gz", true), movieLookup, tasteSpace);
+        float[] weights = TasteOperations.weights(tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION);
+
+        HnswIndex index = new HnswIndex(tasteSpace.getCoordinates());
+        float[][] queries = queries(tasteSpace, 200);
+        assertTrue(recall(index, queries, null, 64) > 0.95);
+        assertTrue(recall(index, queries, weights, 64) > 0.9);
+        assertEquals(1d, recall(index, queries, weights, tasteSpace.getNumClusters()), 0d);
+    }
+
+    // Too slow for regular runs
+    //@Test
+    public void benchmark() throws Exception {
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        TasteSpace tasteSpace = DataLoader.readTasteSpace(() -> open("tastespace.dat.gz", true));
+        UserData userData = DataLoader.readUserDataFull(() -> open("uXXX.csv.gz", true), movieLookup, tasteSpace);
+        float[] weights = TasteOperations.weights(tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION);
+
+        HnswIndex index = new HnswIndex(tasteSpace.getCoordinates());
+        float[][] queries = queries(tasteSpace, 2000);
+        for (float[] w : new float[][] {null, weights}) {
+            String name = w == null ? "unweighted" : "weighted";
+            for (int rep = 0; rep < 3; rep++) {
+                long start = System.nanoTime();
+                for (float[] query : queries) {
+                    index.exact(query, w, K);
+                }
+                System.out.printf("%s, exact: recall@%d 1.000, %.0f queries/s%n", name, K,
+                        queries.length / ((System.nanoTime() - start) / 1e9));
+                for (int ef : new int[] {10, 16, 32, 64, 128, 256}) {
+                    double recall = recall(index, queries, w, ef);
+                    start = System.nanoTime();
+                    for (float[] query : queries) {
+                        index.search(query, w, K, ef);
+                    }
+                    System.out.printf("%s, ef=%d: recall@%d %.3f, %.0f queries/s%n", name, ef, K, recall,
+                            queries.length / ((System.nanoTime() - start) / 1e9));
+                }
+            }
+        }
+    }
+
+    private static double recall(HnswIndex index, float[][] queries, float[] weights, int ef) {
+        int found = 0;
+        for (float[] query : queries) {
+            int[] exact = index.exact(query, weights, K);
+            int[] approximate = index.search(query, weights, K, ef);
+            Arrays.sort(approximate);
+            for (int i : exact) {
+                if (Arrays.binarySearch(approximate, i) >= 0) {
+                    found++;
+                }
+            }
+        }
+        return (double) found / (queries.length * K);
+    }
+
+    private static float[][] queries(TasteSpace tasteSpace, int count) {
+        Random random = new Random(7L);
+        float[][] queries = new float[count][];
+        for (int q = 0; q < count; q++) {
+            queries[q] = tasteSpace.getCoordinates().getRow(random.nextInt(tasteSpace.getNumClusters()),
+                    new float[tasteSpace.getDimensions()]);
+        }
+        return queries;
+    }
+
+}
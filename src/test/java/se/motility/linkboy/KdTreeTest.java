@@ -0,0 +1,112 @@
+package se.motility.linkboy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+import se.motility.linkboy.model.KdTree;
+import se.motility.linkboy.model.Matrix;
+
+import static org.junit.Assert.*;
+
+public class KdTreeTest {
+
+    @Test
+    public void agreesWithBruteForce() {
+        int n = 500;
+        int dims = 7;
+        Random random = new Random(29L);
+        float[][] coordinates = new float[n][dims];
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < dims; d++) {
+                coordinates[i][d] = (float) random.nextGaussian();
+            }
+        }
+        for (int i = 0; i < n; i += 10) {
+            coordinates[i + 1] = coordinates[i].clone(); // coinciding points, like movies of the same cluster
+        }
+        Matrix points = Matrix.of(coordinates);
+        KdTree tree = new KdTree(points);
+        assertEquals(n, tree.size());
+
+        IntPredicate even = i -> i % 2 == 0;
+        for (int q = 0; q < 50; q++) {
+            float[] query = q % 2 == 0 ? coordinates[random.nextInt(n)] : new float[dims];
+            float[] distances = new float[n];
+            float[] norms = new float[n];
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                distances[i] = distance(query, coordinates[i]);
+                norms[i] = VectorMath.norm2(query, coordinates[i]);
+                order[i] = i;
+                assertEquals(distances[i], tree.distance(query, i), 0f);
+            }
+            Arrays.sort(order, (a, b) -> distances[a] != distances[b]
+                    ? Float.compare(distances[a], distances[b]) : Integer.compare(a, b));
+
+            int[] nearest = tree.nearest(query, 12, null);
+            assertArrayEquals(Arrays.stream(order).limit(12).mapToInt(Integer::intValue).toArray(), nearest);
+            int[] nearestEven = tree.nearest(query, 12, even);
+            assertArrayEquals(Arrays.stream(order).filter(i -> i % 2 == 0).limit(12).mapToInt(Integer::intValue)
+                                    .toArray(), nearestEven);
+
+            float radius = distances[order[40]];
+            int[] within = tree.withinRadius(query, radius, even);
+            assertArrayEquals(IntStream.range(0, n)
+                                       .filter(i -> i % 2 == 0 && distances[i] <= radius)
+                                       .toArray(), within);
+
+            // Scanning with a shrinking limit acts on exactly the points a full scan acts on, both by the
+            // distances of the tree and by those of a distance matrix
+            for (float[] scanned : new float[][] {distances, norms}) {
+                float limit = Float.POSITIVE_INFINITY;
+                List<Integer> visited = new ArrayList<>();
+                for (int i = tree.next(query, 0, limit, null); i >= 0; i = tree.next(query, i + 1, limit, null)) {
+                    if (scanned[i] < limit) {
+                        limit = scanned[i];
+                        visited.add(i);
+                    }
+                }
+                List<Integer> expected = new ArrayList<>();
+                limit = Float.POSITIVE_INFINITY;
+                for (int i = 0; i < n; i++) {
+                    if (scanned[i] < limit) {
+                        limit = scanned[i];
+                        expected.add(i);
+                    }
+                }
+                assertEquals(expected, visited);
+            }
+            assertEquals(-1, tree.next(query, n, Float.POSITIVE_INFINITY, null));
+        }
+    }
+
+    @Test
+    public void viewsAndEmptySets() {
+        Matrix points = Matrix.of(new float[][] {{0f, 0f, 9f}, {3f, 4f, 9f}, {1f, 1f, 9f}});
+        KdTree subspace = new KdTree(points.rows(new int[] {2, 1}).cols(new int[] {0, 1}));
+        assertArrayEquals(new int[] {0, 1}, subspace.nearest(new float[] {0f, 0f}, 5, null));
+        assertEquals(5f, subspace.distance(new float[] {0f, 0f}, 1), 0f);
+
+        KdTree empty = new KdTree(new Matrix(0, 2));
+        assertEquals(0, empty.nearest(new float[2], 3, null).length);
+        assertEquals(0, empty.withinRadius(new float[2], 1f, null).length);
+        assertEquals(-1, empty.next(new float[2], 0, 1f, null));
+    }
+
+    // Distance summing the squared differences, like the tree
+    private static float distance(float[] p1, float[] p2) {
+        float result = 0;
+        float diff;
+        for (int d = 0; d < p1.length; d++) {
+            diff = p1[d] - p2[d];
+            result += diff * diff;
+        }
+        return (float) Math.sqrt(result);
+    }
+
+}
@@ -0,0 +1,69 @@
+package se.motility.linkboy;
+
+import org.junit.Test;
+import se.motility.linkboy.model.Matrix;
+
+import static org.junit.Assert.*;
+
+public class MatrixTest {
+
+    @Test
+    public void views() {
+        float[][] rows = {
+                {0f, 1f, 2f, 3f},
+                {4f, 5f, 6f, 7f},
+                {8f, 9f, 10f, 11f}
+        };
+        Matrix matrix = Matrix.of(rows);
+        assertTrue(matrix.isDense());
+        assertEquals(3, matrix.getRows());
+        assertEquals(4, matrix.getCols());
+
+        Matrix transposed = matrix.transpose();
+        assertFalse(transposed.isDense());
+        assertEquals(4, transposed.getRows());
+        assertEquals(9f, transposed.get(1, 2), 0f);
+        assertSame(matrix.getData(), transposed.transpose().getData());
+
+        assertArrayEquals(new float[] {2f, 6f, 10f}, matrix.getCol(2, new float[3]), 0f);
+        assertArrayEquals(new float[] {4f, 5f, 6f, 7f}, matrix.row(1).getRow(0, new float[4]), 0f);
+        assertArrayEquals(new float[] {3f, 7f, 11f}, transposed.row(3).getRow(0, new float[3]), 0f);
+        assertEquals(11f, matrix.col(3).get(2, 0), 0f);
+
+        // A subspace of a selection of rows reads the same array
+        Matrix view = matrix.rows(new int[] {2, 0, 2}).cols(new int[] {3, 1});
+        assertEquals(3, view.getRows());
+        assertEquals(2, view.getCols());
+        assertArrayEquals(new float[] {11f, 9f}, view.getRow(0, new float[2]), 0f);
+        assertArrayEquals(new float[] {3f, 1f}, view.getRow(1, new float[2]), 0f);
+        assertArrayEquals(new float[] {9f, 1f, 9f}, view.getCol(1, new float[3]), 0f);
+        assertArrayEquals(new float[] {3f, 11f}, view.rows(1, 3).getCol(0, new float[2]), 0f);
+        view.set(0, 1, -1f);
+        assertEquals(-1f, matrix.get(2, 1), 0f);
+
+        Matrix compact = view.compact();
+        assertTrue(compact.isDense());
+        assertArrayEquals(new float[] {11f, -1f, 3f, 1f, 11f, -1f}, compact.getData(), 0f);
+        assertSame(matrix, matrix.compact());
+    }
+
+    @Test
+    public void columnMajorKernels() {
+        Matrix points = Matrix.of(new float[][] {{0f, 0f}, {3f, 4f}, {1f, 1f}});
+        Matrix columns = points.transpose().compact();
+        assertEquals(5f, VectorMath.norm2(columns, 0, 1), 0f);
+        float[] result = new float[3];
+        VectorMath.norm2(new float[] {3f, 4f}, true, columns, 0, 3, new double[3], result);
+        assertArrayEquals(new float[] {5f, 0f, VectorMath.norm2(new float[] {3f, 4f}, new float[] {1f, 1f})},
+                result, 0f);
+        VectorMath.norm2(new float[] {3f, 4f}, false, columns, 0, 3, new double[3], result);
+        assertArrayEquals(new float[] {5f, 0f, VectorMath.norm2(new float[] {1f, 1f}, new float[] {3f, 4f})},
+                result, 0f);
+        assertArrayEquals(new float[] {4f / 3f, 5f / 3f}, VectorMath.byCol(points, x -> VectorMath.mean(x)), 1e-6f);
+
+        Matrix scaled = new Matrix(2, 3).transpose();
+        VectorMath.axpb(points.col(1), 2f, 1f, scaled.col(0));
+        assertArrayEquals(new float[] {1f, 9f, 3f}, scaled.getCol(0, new float[3]), 0f);
+    }
+
+}
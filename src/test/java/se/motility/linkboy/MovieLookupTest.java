@@ -0,0 +1,121 @@
+package se.motility.linkboy;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import se.motility.linkboy.model.Movie;
+
+import static org.junit.Assert.*;
+import static se.motility.linkboy.TestUtil.*;
+
+public class MovieLookupTest {
+
+    @Test
+    public void clusters() throws Exception {
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        List<Movie> all = movieLookup.search("");
+
+        for (int clusterId = 1; clusterId <= 200; clusterId++) {
+            int id = clusterId;
+            List<Integer> expected = all.stream()
+                                        .filter(m -> m.getClusterId() == id)
+                                        .map(Movie::getId)
+                                        .sorted()
+                                        .collect(Collectors.toList());
+            List<Movie> cluster = movieLookup.getCluster(clusterId);
+            assertEquals(expected, cluster.stream().map(Movie::getId).sorted().collect(Collectors.toList()));
+            for (int i = 1; i < cluster.size(); i++) {
+                float previous = cluster.get(i - 1).getRating();
+                float rating = cluster.get(i).getRating();
+                assertTrue(Float.isNaN(rating) || previous >= rating);
+            }
+            assertEquals(cluster.subList(0, Math.min(4, cluster.size())), movieLookup.getCluster(clusterId, 4));
+        }
+        assertTrue(movieLookup.getCluster(-1).isEmpty());
+    }
+
+    @Test
+    public void searchMatchesScan() throws Exception {
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        List<Movie> all = movieLookup.search("");
+        String[] terms = {"", "a", "Th", "the", "THE MATRIX", "matrix", "Amélie", "amelie", "  ", "(2001)",
+                          "star wars", "Wars: Episode", "ü", "zzzz", "lord of the", "'s", "xyz.", "a*b", "Q[u"};
+        for (String term : terms) {
+            List<Integer> expected = scan(all, term).stream().map(Movie::getId).collect(Collectors.toList());
+            assertEquals(term, expected, movieLookup.search(term).stream().map(Movie::getId).collect(Collectors.toList()));
+        }
+        assertFalse(movieLookup.search("matrix").isEmpty());
+    }
+
+    @Test
+    public void completeRanksByVotes() throws Exception {
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        List<Movie> all = movieLookup.search("");
+        Comparator<Movie> mostVotes = Comparator.comparingInt(Movie::getVotes).reversed().thenComparingInt(Movie::getId);
+
+        for (String prefix : new String[] {"m", "Matr", "star", "the", "amél", "1995", "lord "}) {
+            String p = prefix.trim().toLowerCase(Locale.ROOT).replace("é", "e");
+            List<Movie> expected = all.stream()
+                                      .filter(m -> hasWordStartingWith(m.getTitle(), p))
+                                      .sorted(mostVotes)
+                                      .limit(10)
+                                      .collect(Collectors.toList());
+            assertFalse(prefix, expected.isEmpty());
+            assertEquals(prefix, expected, movieLookup.complete(prefix, 10));
+        }
+
+        // Several words, or no word starting with the term, fall back to ranking the substring matches
+        for (String term : new String[] {"star wars", "atrix"}) {
+            List<Movie> expected = movieLookup.search(term).stream()
+                                              .sorted(mostVotes)
+                                              .limit(10)
+                                              .collect(Collectors.toList());
+            assertFalse(term, expected.isEmpty());
+            assertEquals(term, expected, movieLookup.complete(term, 10));
+        }
+        assertTrue(movieLookup.complete("zzqzz", 10).isEmpty());
+        assertTrue(movieLookup.complete(" ", 10).isEmpty());
+        assertEquals(30, movieLookup.complete("the", 30).size());
+    }
+
+    private static boolean hasWordStartingWith(String title, String prefix) {
+        String normalized = Normalizer.normalize(title, Normalizer.Form.NFD)
+                                      .replaceAll("\\p{InCombiningDiacriticalMarks}+", "")
+                                      .toLowerCase(Locale.ROOT);
+        for (String word : normalized.split("[^\\p{L}\\p{N}]+")) {
+            if (word.startsWith(prefix) && !word.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The search as it used to be, a case-insensitive match against every title
+    private static List<Movie> scan(List<Movie> movies, String term) {
+        Pattern diacritics = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+        String q = diacritics.matcher(Normalizer.normalize(term, Normalizer.Form.NFD)).replaceAll("");
+        Pattern pattern = Pattern.compile(Pattern.quote(q), Pattern.CASE_INSENSITIVE);
+        List<Movie> result = new ArrayList<>();
+        for (Movie movie : movies) {
+            String title = diacritics.matcher(Normalizer.normalize(movie.getTitle(), Normalizer.Form.NFD)).replaceAll("");
+            if (pattern.matcher(title).find()) {
+                result.add(movie);
+            }
+        }
+        result.sort(Comparator.comparingInt(Movie::getId));
+        return result;
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void clustersAreUnmodifiable() throws Exception {
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        movieLookup.getCluster(1).clear();
+    }
+
+}
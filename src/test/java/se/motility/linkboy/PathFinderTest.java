@@ -10,15 +10,27 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.motility.linkboy.model.DistanceMatrix;
 import se.motility.linkboy.model.Movie;
 import se.motility.linkboy.model.MoviePath;
 import se.motility.linkboy.model.Prediction;
+import se.motility.linkboy.model.ProfileIndexes;
 import se.motility.linkboy.model.TasteSpace;
 import se.motility.linkboy.model.UserData;
 
@@ -27,6 +39,9 @@ import static se.motility.linkboy.TestUtil.*;
 
 public class PathFinderTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private static final double DELTA = 1e-4;
     private static final String PREDICTION_BASELINE_FILE = "src/test/resources/baseline/prediction-baseline.dat";
     private static final String PREDICTION_CURRENT_FILE = "src/test/resources/prediction-current.dat";
@@ -202,8 +217,8 @@ public class PathFinderTest {
 
     }
 
-    // The operation never completes when identifying a path between clusters 9 and 209. Needs investigation.
-    //@Test
+    // Used to never complete with the brute-force search when identifying a path between clusters 9 and 209
+    @Test
     public void perfTestWeirdBehavior() throws Exception {
 
         MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
@@ -223,8 +238,123 @@ public class PathFinderTest {
         System.out.println(path.toString());
     }
 
-    // Performance issues
-    //@Test
+    @Test
+    public void pathParallel() throws Exception {
+
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        TasteSpace tasteSpace = DataLoader.readTasteSpace(() -> open("tastespace.dat.gz", true));
+        UserData userData = DataLoader.readUserDataFull(
+                () -> open("uXXX.csv.gz", true), movieLookup, tasteSpace);
+
+        PathFinder sequential = new PathFinder(movieLookup, tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION);
+        PathFinder parallel = new PathFinder(movieLookup, tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION,
+                new ForkJoinPool(4));
+
+        for (int cId = 1; cId <= 10; cId++) {
+            int movieId1 = movieLookup.getCluster(cId).get(0).getId();
+            int movieId2 = movieLookup.getCluster(200 + 7 * cId).get(0).getId();
+            MoviePath expected = sequential.find(movieId1, movieId2, null);
+            MoviePath actual = parallel.find(movieId1, movieId2, null);
+            assertEquals(expected.toString(), actual.toString());
+        }
+    }
+
+    @Test
+    public void pathMultipleTargets() throws Exception {
+
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        TasteSpace tasteSpace = DataLoader.readTasteSpace(() -> open("tastespace.dat.gz", true));
+        UserData userData = DataLoader.readUserDataFull(
+                () -> open("uXXX.csv.gz", true), movieLookup, tasteSpace);
+
+        PathFinder finder = new PathFinder(movieLookup, tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION);
+
+        int startMovieId = movieLookup.getCluster(1).get(0).getId();
+        int[] targetMovieIds = new int[12];
+        for (int i = 0; i < 10; i++) {
+            targetMovieIds[i] = movieLookup.getCluster(200 + 7 * i).get(0).getId();
+        }
+        targetMovieIds[10] = movieLookup.getCluster(200).get(1).getId(); // same cluster as first target
+        targetMovieIds[11] = -1; // unknown movie
+
+        MoviePath[] paths = finder.findAll(startMovieId, targetMovieIds, null);
+
+        assertEquals(targetMovieIds.length, paths.length);
+        for (int i = 0; i < 11; i++) {
+            MoviePath expected = finder.find(startMovieId, targetMovieIds[i], null);
+            assertEquals(expected.toString(), paths[i].toString());
+            assertEquals(targetMovieIds[i], paths[i].getMov2().getId());
+        }
+        assertNull(paths[11]);
+    }
+
+    @Test
+    public void pathAlternatives() throws Exception {
+
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        TasteSpace tasteSpace = DataLoader.readTasteSpace(() -> open("tastespace.dat.gz", true));
+        UserData userData = DataLoader.readUserDataFull(
+                () -> open("uXXX.csv.gz", true), movieLookup, tasteSpace);
+
+        PathFinder finder = new PathFinder(movieLookup, tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION);
+
+        for (int cId = 1; cId <= 10; cId++) {
+            int movieId1 = movieLookup.getCluster(cId).get(0).getId();
+            int movieId2 = movieLookup.getCluster(200 + 7 * cId).get(0).getId();
+            MoviePath expected = finder.find(movieId1, movieId2, null);
+            Iterator<MoviePath> alternatives = finder.findAlternatives(movieId1, movieId2, null);
+
+            MoviePath first = alternatives.next();
+            assertEquals(expected.toString(), first.toString());
+            Set<List<Integer>> seen = new HashSet<>();
+            seen.add(first.getClusterIds());
+            MoviePath previous = first;
+            for (int i = 0; i < 4 && alternatives.hasNext(); i++) {
+                MoviePath path = alternatives.next();
+                assertEquals(first.getClusterIds().size(), path.getClusterIds().size());
+                assertTrue(path.getDistance() >= previous.getDistance());
+                assertTrue(seen.add(path.getClusterIds()));
+                previous = path;
+            }
+        }
+    }
+
+    @Test
+    public void pathDeadline() throws Exception {
+
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        TasteSpace tasteSpace = DataLoader.readTasteSpace(() -> open("tastespace.dat.gz", true));
+        UserData userData = DataLoader.readUserDataFull(
+                () -> open("uXXX.csv.gz", true), movieLookup, tasteSpace);
+
+        PathFinder finder = new PathFinder(movieLookup, tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION);
+
+        int suboptimal = 0;
+        for (int cId = 1; cId <= 10; cId++) {
+            int movieId1 = movieLookup.getCluster(cId).get(0).getId();
+            int movieId2 = movieLookup.getCluster(200 + 7 * cId).get(0).getId();
+            MoviePath expected = finder.find(movieId1, movieId2, null);
+            MoviePath generous = finder.find(movieId1, movieId2, null, System.currentTimeMillis() + 60_000L);
+            MoviePath expired = finder.find(movieId1, movieId2, null, 0L); // already passed
+
+            assertTrue(expected.isOptimal());
+            assertEquals(expected.toString(), generous.toString());
+            assertNotNull(expired);
+            if (expired.isOptimal()) {
+                assertEquals(expected.toString(), expired.toString());
+            } else {
+                suboptimal++;
+                assertTrue(expired.toString().contains("possibly suboptimal"));
+                if (expired.getClusterIds().size() == expected.getClusterIds().size()) {
+                    assertTrue(expired.getDistance() >= expected.getDistance() - DELTA);
+                }
+            }
+        }
+        System.out.println("Suboptimal paths returned: " + suboptimal);
+        assertTrue(suboptimal > 0);
+    }
+
+    @Test
     public void regressionTestPath() throws Exception {
 
         MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
@@ -262,6 +392,109 @@ public class PathFinderTest {
 
     }
 
+    @Test
+    public void quantized() throws Exception {
+
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        TasteSpace tasteSpace = DataLoader.readTasteSpace(() -> open("tastespace.dat.gz", true));
+        UserData userData = DataLoader.readUserDataFull(
+                () -> open("uXXX.csv.gz", true), movieLookup, tasteSpace);
+
+        PathFinder exact = new PathFinder(movieLookup, tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION);
+        for (DistanceMatrix.Encoding encoding : new DistanceMatrix.Encoding[] {
+                DistanceMatrix.Encoding.HALF, DistanceMatrix.Encoding.FIXED16, DistanceMatrix.Encoding.FIXED8}) {
+            PathFinder finder = new PathFinder(movieLookup, tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION,
+                    null, DistanceMatrix.Layout.TRIANGULAR, null, encoding);
+            assertEquals(encoding, finder.getDefaultDistances().getEncoding());
+            for (int cId = 1; cId <= 20; cId++) {
+                int movieId1 = movieLookup.getCluster(cId).get(0).getId();
+                int movieId2 = movieLookup.getCluster(200 + cId).get(0).getId();
+                MoviePath expected = exact.find(movieId1, movieId2, null);
+                MoviePath path = finder.find(movieId1, movieId2, null);
+                assertNotNull(path);
+                assertEquals(cId, (int) path.getClusterIds().get(0));
+                assertEquals(200 + cId, (int) path.getClusterIds().get(path.getClusterIds().size() - 1));
+                if (encoding != DistanceMatrix.Encoding.FIXED8) {
+                    // Rounding is too small to change these paths, only their distances
+                    assertEquals(expected.getClusterIds(), path.getClusterIds());
+                    assertEquals(expected.getDistance(), path.getDistance(), 2e-3);
+                }
+            }
+            assertEquals(5, finder.findRecommended(116411, null).length); //Tangerines
+        }
+    }
+
+    @Test
+    public void cachedDefaults() throws Exception {
+
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        TasteSpace tasteSpace = DataLoader.readTasteSpace(() -> open("tastespace.dat.gz", true));
+        UserData userData = DataLoader.readUserDataFull(
+                () -> open("uXXX.csv.gz", true), movieLookup, tasteSpace);
+
+        PathFinder computed = new PathFinder(movieLookup, tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION);
+        Path distancesFile = folder.newFile().toPath();
+        Path indexesFile = folder.newFile().toPath();
+        try (OutputStream out = Files.newOutputStream(distancesFile)) {
+            computed.getDefaultDistances().write(out, 42L);
+        }
+        try (OutputStream out = Files.newOutputStream(indexesFile)) {
+            computed.getDefaultIndexes().write(out, 42L);
+        }
+        assertNull(ProfileIndexes.read(indexesFile, 43L)); // stale
+        ProfileIndexes indexes = ProfileIndexes.read(indexesFile, 42L);
+        assertArrayEquals(computed.getDefaultIndexes().getWeights(), indexes.getWeights(), 0f);
+
+        PathFinder cached = new PathFinder(movieLookup, tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION,
+                null, DistanceMatrix.Layout.TRIANGULAR, DistanceMatrix.map(distancesFile, 42L),
+                DistanceMatrix.Encoding.FLOAT, indexes);
+        for (int cId = 1; cId <= 20; cId++) {
+            int movieId1 = movieLookup.getCluster(cId).get(0).getId();
+            int movieId2 = movieLookup.getCluster(200 + cId).get(0).getId();
+            MoviePath expected = computed.find(movieId1, movieId2, null);
+            MoviePath path = cached.find(movieId1, movieId2, null);
+            assertEquals(expected.getClusterIds(), path.getClusterIds());
+            assertEquals(expected.getDistance(), path.getDistance(), 0d);
+        }
+        Prediction[] expected = computed.findRecommended(116411, null); //Tangerines
+        Prediction[] predictions = cached.findRecommended(116411, null);
+        assertEquals(expected.length, predictions.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].toString(), predictions[i].toString());
+        }
+        assertEquals(computed.findSimilar(116411, 10, null), cached.findSimilar(116411, 10, null));
+
+        byte[] bytes = Files.readAllBytes(indexesFile);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(indexesFile, bytes);
+        assertNull(ProfileIndexes.read(indexesFile, 42L)); // corrupted
+        Files.write(indexesFile, Arrays.copyOf(bytes, 1000));
+        assertNull(ProfileIndexes.read(indexesFile, 42L)); // truncated
+    }
+
+    @Test
+    public void similar() throws Exception {
+
+        MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
+        TasteSpace tasteSpace = DataLoader.readTasteSpace(() -> open("tastespace.dat.gz", true));
+        UserData userData = DataLoader.readUserDataFull(
+                () -> open("uXXX.csv.gz", true), movieLookup, tasteSpace);
+
+        PathFinder finder = new PathFinder(movieLookup, tasteSpace, userData, 7, DimensionAnalyser.MIDPOINT_FUNCTION);
+
+        Movie movie = movieLookup.getMovie(116411); //Tangerines
+        List<Movie> similar = finder.findSimilar(movie.getId(), 10, null);
+
+        assertEquals(10, similar.size());
+        Set<Integer> clusters = new HashSet<>();
+        for (Movie m : similar) {
+            assertNotEquals(movie.getClusterId(), m.getClusterId());
+            assertTrue(clusters.add(m.getClusterId()));
+        }
+        assertEquals(10, finder.findSimilar(movie.getId(), 10, 200, null).size());
+        assertTrue(finder.findSimilar(-1, 10, null).isEmpty());
+    }
+
     private void writePredictionOutput(String filename) throws Exception {
         MovieLookup movieLookup = DataLoader.readMovieMap(() -> open("moviemap.dat.gz", true));
         TasteSpace tasteSpace = DataLoader.readTasteSpace(() -> open("tastespace.dat.gz", true));
@@ -0,0 +1,101 @@
+package se.motility.linkboy;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntLists;
+import org.junit.Test;
+import se.motility.linkboy.PathSearch.ClusterPath;
+import se.motility.linkboy.model.DistanceMatrix;
+import se.motility.linkboy.model.Landmarks;
+import se.motility.linkboy.model.Matrix;
+import se.motility.linkboy.model.NeighbourGraph;
+import se.motility.linkboy.model.SuperClusters;
+
+import static org.junit.Assert.*;
+
+public class PathSearchTest {
+
+    private static final int MAX_JUMPS = 4;
+
+    @Test
+    public void agreesWithBruteForce() {
+        Random random = new Random(17L);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int instance = 0; instance < 400; instance++) {
+            int n = 20 + random.nextInt(30);
+            int dims = 2 + random.nextInt(2);
+            float[][] coordinates = new float[n][dims];
+            int[] ids = new int[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = i;
+                for (int d = 0; d < dims; d++) {
+                    coordinates[i][d] = (float) random.nextGaussian();
+                }
+            }
+            DistanceMatrix distances = DistanceMatrix.compute(ids, Matrix.of(coordinates));
+            NeighbourGraph graph = NeighbourGraph.withDegree(distances, 8);
+            SuperClusters groups = SuperClusters.compute(distances, 6);
+            Landmarks landmarks = Landmarks.compute(graph, 3);
+            int start = random.nextInt(n);
+            int target = (start + 1 + random.nextInt(n - 1)) % n;
+
+            double[] maxDist = new double[MAX_JUMPS + 1];
+            for (int jumps = 1; jumps <= MAX_JUMPS; jumps++) {
+                maxDist[jumps] = (distances.getDistance(start, target) / (double) jumps) * 1.5d;
+            }
+            ClusterPath[] expected = new ClusterPath[MAX_JUMPS + 1];
+            for (int jumps = 1; jumps <= MAX_JUMPS; jumps++) {
+                expected[jumps] = bruteForce(distances, start, target, jumps, maxDist[jumps]);
+            }
+
+            PathSearch[] searches = {
+                    new PathSearch(distances, start, target),
+                    new PathSearch(distances, start, target, pool),
+                    new PathSearch(new PathSearch.Origin(distances, graph, groups, landmarks, start), target, null),
+                    new PathSearch(new PathSearch.Origin(distances, graph, groups, landmarks, start), target, pool)};
+            for (PathSearch search : searches) {
+                ClusterPath[] paths = search.find(maxDist);
+                for (int jumps = 1; jumps <= MAX_JUMPS; jumps++) {
+                    String message = "instance " + instance + ", " + jumps + " jumps";
+                    if (expected[jumps] == null || Double.isInfinite(expected[jumps].distance)) {
+                        assertTrue(message, paths[jumps] == null || Double.isInfinite(paths[jumps].distance));
+                    } else {
+                        assertNotNull(message, paths[jumps]);
+                        assertEquals(message, expected[jumps].clusterIndexes, paths[jumps].clusterIndexes);
+                        assertEquals(message, expected[jumps].distance, paths[jumps].distance, 1e-9);
+                    }
+                }
+            }
+        }
+        pool.shutdown();
+    }
+
+    // The recursive search PathSearch replaced, enumerating all jump sequences
+    private static ClusterPath bruteForce(DistanceMatrix distances, int cIdx1, int cIdx2, int remaining,
+            double maxDist) {
+        if (remaining == 1) {
+            float distance = distances.getDistance(cIdx1, cIdx2);
+            return distance > maxDist ? null : new ClusterPath(IntArrayList.wrap(new int[] {cIdx2}), distance);
+        }
+        double distance = Double.POSITIVE_INFINITY;
+        IntList path = IntLists.EMPTY_LIST;
+        double d;
+        ClusterPath next;
+        for (int i = 0; i < distances.getNumClusters(); i++) {
+            if (cIdx1 != i && cIdx2 != i && (d = distances.getDistance(cIdx1, i)) < maxDist) {
+                next = bruteForce(distances, i, cIdx2, remaining - 1, maxDist);
+                if (next != null && d + next.distance < distance) {
+                    path = new IntArrayList();
+                    path.add(i);
+                    path.addAll(next.clusterIndexes);
+                    distance = d + next.distance;
+                }
+            }
+        }
+        return new ClusterPath(path, distance);
+    }
+
+}
@@ -5,6 +5,7 @@ import java.util.function.IntFunction;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
+import se.motility.linkboy.model.Matrix;
 import se.motility.linkboy.model.Prediction;
 import se.motility.linkboy.model.TasteSpace;
 import se.motility.linkboy.model.UserData;
@@ -179,17 +180,17 @@ public class PredictionTest {
         int[] movieIds = userData.getMovieIds();
         int[] clusterIds = userData.getClusterIds();
         float[] ratings = userData.getRatings();
-        float[][] coordinates = userData.getSpace().getCoordinates();
+        Matrix coordinates = userData.getSpace().getCoordinates();
         UserData test = new UserData(
                 Arrays.copyOfRange(movieIds, 0, testSamples),
                 Arrays.copyOfRange(clusterIds, 0, testSamples),
                 Arrays.copyOfRange(ratings, 0, testSamples),
-                Arrays.copyOfRange(coordinates, 0, testSamples));
+                coordinates.rows(0, testSamples));
         UserData training = new UserData(
                 Arrays.copyOfRange(movieIds, testSamples, movieIds.length),
                 Arrays.copyOfRange(clusterIds, testSamples, clusterIds.length),
                 Arrays.copyOfRange(ratings, testSamples, ratings.length),
-                Arrays.copyOfRange(coordinates, testSamples, coordinates.length));
+                coordinates.rows(testSamples, coordinates.getRows()));
 
         return new Split(training, test);
     }